@@ -6,9 +6,7 @@
 
 default rel
 
-global __hasValue
-global __getValue
-global __setValue
+global __memoInsert
 global __print
 global __println
 global __getString
@@ -20,9 +18,6 @@ global __string_parseInt
 global __string_ord
 global __stringConcate
 global __stringCompare
-global __value
-global __has
-global __real_addr
 global main
 
 extern strcmp
@@ -36,135 +31,19 @@ extern __printf_chk
 
 SECTION .text   6
 
-__hasValue:
-        mov     rax, rdi
-        mov     rdx, qword 1323E34A2B10BF67H
-        imul    rdx
-        mov     rax, rdi
-        sar     rax, 63
-        sar     rdx, 3
-        sub     rdx, rax
-        mov     eax, 107
-        imul    rdx, rax
-        mov     rax, rdi
-        sub     rax, rdx
-        mov     rdx, rax
-        xor     eax, eax
-
-        cmp     qword [abs __real_addr+rdx*8], rdi
-        jz      L_002
-L_001:
-
-        ret
-
-
-
-
-
-ALIGN   8
-L_002:  cmp     rsi, 209
-        ja      L_001
-        imul    rdx, rdx, 210
-        add     rsi, rdx
-
-        mov     rax, qword [abs __has+rsi*8]
-        ret
-
-
-
-
-
-
-ALIGN   8
-
-__getValue:
-        mov     rax, rdi
-        mov     rdx, qword 1323E34A2B10BF67H
-        imul    rdx
-        mov     rax, rdi
-        sar     rax, 63
-        sar     rdx, 3
-        sub     rdx, rax
-        mov     eax, 107
-        imul    rdx, rax
-        sub     rdi, rdx
-        imul    rdi, rdi, 210
-        add     rsi, rdi
-
-        mov     rax, qword [abs __value+rsi*8]
-        ret
-
-
-
-
-
-
-ALIGN   8
-
-__setValue:
-        cmp     rsi, 209
-        mov     r9, rdx
-        ja      L_008
-        mov     r8, qword 1323E34A2B10BF67H
-        mov     rax, rdi
-        mov     r10d, 107
-        imul    r8
-        mov     rax, rdi
-        sar     rax, 63
-        mov     r8, rdx
-        sar     r8, 3
-        sub     r8, rax
-        mov     rax, rdi
-        imul    r8, r10
-        sub     rax, r8
-        mov     r8, rax
-
-        mov     rax, qword [abs __real_addr+rax*8]
-        cmp     rax, rdi
-        jz      L_007
-        test    rax, rax
-        je      L_012
-        imul    rax, r8, 1680
-        mov     edx, 1680
-
-        lea     rdi, [abs __has+rax]
-        test    dil, 01H
-        jne     L_013
-L_003:  test    dil, 02H
-        jne     L_014
-L_004:  test    dil, 04H
-        jne     L_015
-L_005:  mov     ecx, edx
-        xor     eax, eax
-        shr     ecx, 3
-        test    dl, 04H
-        rep stosq
-        jnz     L_011
-        test    dl, 02H
-        jnz     L_010
-L_006:  and     edx, 01H
-        jnz     L_009
-
-
-
-
-ALIGN   8
-L_007:  mov     rax, r9
-        imul    r8, r8, 210
-        add     rsi, r8
-
-        mov     qword [abs __has+rsi*8], 1
-
-        mov     qword [abs __value+rsi*8], r9
-        ret
-
-
-
-
-
-ALIGN   8
-L_008:
-
+__memoInsert:
+        mov     r10, rdi
+        mov     rax, rdx
+        lea     rdi, [rdi+40H]
+        cmp     qword [r10], 0
+        jnz     L_003
+L_001:  mov     rdi, r10
+L_002:  mov     qword [rdi], rsi
+        mov     qword [rdi+8H], 0
+        mov     qword [rdi+10H], rcx
+        mov     qword [rdi+18H], r8
+        mov     qword [rdi+20H], r9
+        mov     qword [rdi+28H], rax
         ret
 
 
@@ -172,74 +51,15 @@ L_008:
 
 
 ALIGN   8
-L_009:  mov     byte [rdi], 0
-        jmp     L_007
-
-
-
-
-
-ALIGN   8
-L_010:  xor     eax, eax
-        add     rdi, 2
-        mov     word [rdi-2H], ax
-        and     edx, 01H
-        jz      L_007
-        jmp     L_009
-
-
-
-
-
-ALIGN   8
-L_011:  mov     dword [rdi], 0
-        add     rdi, 4
-        test    dl, 02H
-        jz      L_006
-        jmp     L_010
-
-
-
-
-
-ALIGN   8
-L_012:
-
-        mov     qword [abs __real_addr+r8*8], rdi
-        jmp     L_007
-
-
-
-
-
-ALIGN   8
-L_013:
-
-        mov     byte [abs __has+rax], 0
-        add     rdi, 1
-        mov     dl, -113
-        jmp     L_003
-
-
-
-
-
-ALIGN   8
-L_014:  xor     ecx, ecx
-        add     rdi, 2
-        sub     edx, 2
-        mov     word [rdi-2H], cx
-        jmp     L_004
-
-
-
-
-
-ALIGN   8
-L_015:  mov     dword [rdi], 0
-        sub     edx, 4
-        add     rdi, 4
-        jmp     L_005
+L_003:  cmp     qword [r10+40H], 0
+        jz      L_002
+        cmp     qword [r10+8H], 0
+        jz      L_001
+        cmp     qword [r10+48H], 0
+        jz      L_002
+        mov     qword [r10+48H], 0
+        mov     qword [r10+8H], 0
+        jmp     L_001
 
 
 
@@ -876,15 +696,6 @@ SECTION .data
 
 SECTION .bss    align=32
 
-__value:
-        resq    22472
-
-__has:
-        resq    22472
-
-__real_addr:
-        resq    108
-
 __buffer.3442:
         resb    1048576
 
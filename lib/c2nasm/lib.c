@@ -25,43 +25,37 @@ int main() {
     return __init();
 }
 
-#define Mod 107
-#define N 210
-
-int64_t __real_addr[Mod] = {0};
-int64_t __has[Mod][N] = {0};
-int64_t __value[Mod][N] = {0};
-
-int64_t __hasValue(int64_t addr, int64_t n) {
-    int64_t key = addr % Mod;
-  //  printf("hasValue(%ld, %ld) ", addr, n);
-    if(__real_addr[key] == addr && 0 <= n && n < N) {
- //       printf("YES\n");
-        return __has[key][n];
-    }
-//    printf("NO\n");
-    return 0;
-}
-
-int64_t __getValue(int64_t addr, int64_t n) {
-    return __value[addr % Mod][n];
-}
-
-int64_t __setValue(int64_t addr, int64_t n, int64_t val) {
-    if(n < 0 || n >= N) return;
-    int64_t key = addr % Mod;
-    if(__real_addr[key] != addr) {
-        if(__real_addr[key] == 0)
-            __real_addr[key] = addr;
-        else {
-			int i;
-            for(i = 0; i < N; i++)
-                __has[key][i] = 0;
-        }
-    }
-    __has[key][n] = 1;
-    __value[key][n] = val;
-    return val;
+/*
+	the memo table of the memoized functions is allocated by the compiler, 128 bytes aligned.
+	a bucket takes 128 bytes, two entries of 64 bytes:
+		tag (the id of the function, 0 if empty), referenced, args[3], value, 2 unused
+	the compiler probes the two entries of a bucket (bucket and bucket + 64) inline,
+	on a miss the computed value is inserted here with clock (second chance) eviction:
+	an empty entry is filled first, then one not referenced since it was inserted or last swept is replaced,
+	if both are referenced their bits are cleared and the first one is replaced.
+*/
+int64_t __memoInsert(int64_t *bucket, int64_t tag, int64_t value, int64_t a0, int64_t a1, int64_t a2) {
+	int64_t *other = bucket + 8;
+	int64_t *victim;
+	if(bucket[0] == 0)
+		victim = bucket;
+	else if(other[0] == 0)
+		victim = other;
+	else if(bucket[1] == 0)
+		victim = bucket;
+	else if(other[1] == 0)
+		victim = other;
+	else {
+		bucket[1] = other[1] = 0;
+		victim = bucket;
+	}
+	victim[0] = tag;
+	victim[1] = 0;
+	victim[2] = a0;
+	victim[3] = a1;
+	victim[4] = a2;
+	victim[5] = value;
+	return value;
 }
 
 void __print(pointer_t str) {
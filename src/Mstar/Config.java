@@ -7,7 +7,7 @@ public class Config {
     public static int REGISTER_WIDTH = 8;
 
     public enum Allocator {
-        NaiveAllocator, SimpleGraphAllocator, GraphAllocator
+        NaiveAllocator, SimpleGraphAllocator, LinearScanAllocator
     };
 
     public static FileInputStream fin;
@@ -16,16 +16,35 @@ public class Config {
     public static boolean useCommomAssignElimination = true;
     public static boolean useOutputIrrelevantElimination = true;
     public static boolean useBackupOptimization = true;
-    public static boolean useLocalValueNumberOptimization = true;
+    public static boolean useGlobalValueNumberOptimization = true;
     public static boolean useUselessInstructionElimination = true;
     public static boolean useInlineOptimization = true;
+    public static boolean useMemoryOperandFolding = true;
+    public static boolean useSSA = true;
+    public static boolean useSparseConditionalConstantPropagation = true;
+    public static boolean useLoopInvariantCodeMotion = true;
+    public static boolean useInductionVariableOptimization = true;
+    public static boolean usePartialRedundancyElimination = true;
+    public static boolean useAggressiveDeadCodeElimination = true;
+    public static boolean useCopyPropagation = true;
+    public static boolean useControlFlowGraphSimplification = true;
+    public static boolean useBasicBlockLayout = true;
+    public static boolean useFunctionInlining = true;
+    public static boolean useGlobalModRefAnalysis = true;
+    public static boolean useEffectAnalysis = true;
+    public static boolean useTailRecursionElimination = true;
+    public static boolean useTailCallOptimization = true;
     public static int inlineMaxDepth = 4;
     public static int inlineOperationsThreshold = 20;
+    public static int inlineInstructionThreshold = 40;
+    public static int inlineCallerSizeLimit = 4000;
+    public static int memoizationCapacity = 1 << 16;   //  entries of the memo table, a power of 2
 
     public static Allocator allocator = Allocator.SimpleGraphAllocator;
+    public static int linearScanThreshold = 2000;
     public static boolean printAST = false;
     public static boolean printIR = true;
-    public static boolean printIRAfterLocalValueNumberOptimization = false;
+    public static boolean printIRInSSAForm = false;
     public static boolean printIRAfterUselessInstructionElimination = false;
     public static boolean printIRAfterAllocator = false;
     public static boolean printIRWithFrame = false;
@@ -5,6 +5,7 @@ import Mstar.IR.Instruction.IRInstruction;
 import Mstar.IR.Instruction.Jump;
 import Mstar.IR.Instruction.Return;
 
+import java.util.HashSet;
 import java.util.LinkedList;
 
 public class BasicBlock {
@@ -16,6 +17,15 @@ public class BasicBlock {
     public LinkedList<BasicBlock> frontiers = null;
     public LinkedList<BasicBlock> successors = null;
 
+    /* dominator tree, filled by Function.calcDominatorTree, the idom of enterBB is null */
+    public BasicBlock idom = null;
+    public LinkedList<BasicBlock> dominatorTreeChildren = null;
+    public HashSet<BasicBlock> dominanceFrontier = null;
+
+    /* post-dominator tree, filled by Function.calcPostDominatorTree, the ipdom of leaveBB is null */
+    public BasicBlock postIdom = null;
+    public HashSet<BasicBlock> controlDependence = null;
+
     private static int globalBlockId = 0;
     public int blockId;
 
@@ -24,6 +34,9 @@ public class BasicBlock {
         this.hint = hint;
         this.frontiers = new LinkedList<>();
         this.successors = new LinkedList<>();
+        this.dominatorTreeChildren = new LinkedList<>();
+        this.dominanceFrontier = new HashSet<>();
+        this.controlDependence = new HashSet<>();
         function.basicblocks.add(this);
         blockId = globalBlockId++;
     }
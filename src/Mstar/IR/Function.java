@@ -14,10 +14,16 @@ public class Function {
     public enum Type {
         External, Library, UserDefined
     }
+    /* what a call may do besides computing its return value, in increasing order */
+    public enum Effect {
+        Pure, ReadOnly, Writing
+    }
     public Type type;
     public String name;
     public boolean hasReturnValue;
     public boolean hasOutput;
+    public Effect effect = Effect.Writing;
+    public boolean memoized = false;
     public BasicBlock enterBB;
     public BasicBlock leaveBB;
     public LinkedList<BasicBlock> basicblocks;
@@ -25,8 +31,17 @@ public class Function {
     public LinkedList<BasicBlock> reversePostOrderOnReverseCFG;
     public LinkedList<VirtualRegister> parameters;
 
+    /* the order the BasicBlocks are printed in, reversePostOrder if it is null */
+    public LinkedList<BasicBlock> layout = null;
+    public HashSet<BasicBlock> alignedBasicBlocks;
+
     public HashSet<VariableSymbol> usedGlobalVariables;
     public HashSet<VariableSymbol> recursiveUsedGlobalVariables;
+    /* the mod / ref summaries filled by GlobalModRefAnalyzer */
+    public HashSet<VariableSymbol> readGlobalVariables;
+    public HashSet<VariableSymbol> writtenGlobalVariables;
+    public HashSet<VariableSymbol> recursiveReadGlobalVariables;
+    public HashSet<VariableSymbol> recursiveWrittenGlobalVariables;
     public HashSet<PhysicalRegister> usedPhysicalRegisters;
     public HashSet<PhysicalRegister> recursiveUsedPhysicalRegisters;
 
@@ -44,8 +59,13 @@ public class Function {
         this.reversePostOrder = new LinkedList<>();
         this.reversePostOrderOnReverseCFG = new LinkedList<>();
         this.parameters = new LinkedList<>();
+        this.alignedBasicBlocks = new HashSet<>();
         this.usedGlobalVariables = new HashSet<>();
         this.recursiveUsedGlobalVariables = new HashSet<>();
+        this.readGlobalVariables = new HashSet<>();
+        this.writtenGlobalVariables = new HashSet<>();
+        this.recursiveReadGlobalVariables = new HashSet<>();
+        this.recursiveWrittenGlobalVariables = new HashSet<>();
         this.usedPhysicalRegisters = new HashSet<>();
         this.recursiveUsedPhysicalRegisters = new HashSet<>();
         this.callee = new HashSet<>();
@@ -133,6 +153,145 @@ public class Function {
         dfsRecursiveUsedGlobalVariables(this);
     }
 
+    /*
+        drop the BasicBlocks which can not be reached from enterBB, so that every predecessor
+        of a reachable block is reachable as well. leaveBB is kept even if it is unreachable.
+     */
+    public void removeUnreachableBasicBlocks() {
+        HashSet<BasicBlock> reachable = new HashSet<>(reversePostOrder);
+        basicblocks.removeIf(bb -> !reachable.contains(bb) && bb != leaveBB);
+        finishBuild();
+    }
+
+    /*
+        the dominator tree by the iterative algorithm of Cooper, Harvey and Kennedy,
+        and the dominance frontiers of all reachable BasicBlocks.
+        unreachable blocks are left out of the tree.
+     */
+    public void calcDominatorTree() {
+        HashMap<BasicBlock, Integer> order = new HashMap<>();
+        for(BasicBlock bb : basicblocks) {
+            bb.idom = null;
+            bb.dominatorTreeChildren.clear();
+            bb.dominanceFrontier.clear();
+        }
+        for(BasicBlock bb : reversePostOrder)
+            order.put(bb, order.size());
+
+        enterBB.idom = enterBB;
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(BasicBlock bb : reversePostOrder) {
+                if(bb == enterBB)
+                    continue;
+                BasicBlock newIdom = null;
+                for(BasicBlock pred : bb.frontiers) {
+                    if(pred.idom == null)
+                        continue;
+                    newIdom = newIdom == null ? pred : intersect(pred, newIdom, order);
+                }
+                if(newIdom != bb.idom) {
+                    bb.idom = newIdom;
+                    changed = true;
+                }
+            }
+        }
+        enterBB.idom = null;
+        for(BasicBlock bb : reversePostOrder) {
+            if(bb != enterBB)
+                bb.idom.dominatorTreeChildren.add(bb);
+        }
+
+        for(BasicBlock bb : reversePostOrder) {
+            if(bb.frontiers.size() < 2)
+                continue;
+            for(BasicBlock pred : bb.frontiers) {
+                if(!order.containsKey(pred))
+                    continue;
+                for(BasicBlock runner = pred; runner != bb.idom; runner = runner.idom)
+                    runner.dominanceFrontier.add(bb);
+            }
+        }
+    }
+
+    private BasicBlock intersect(BasicBlock a, BasicBlock b, HashMap<BasicBlock, Integer> order) {
+        while(a != b) {
+            while(order.get(a) > order.get(b))
+                a = a.idom;
+            while(order.get(b) > order.get(a))
+                b = b.idom;
+        }
+        return a;
+    }
+
+    /*
+        the post-dominator tree by the same algorithm on the reversed CFG, and the control dependences:
+        bb is control dependent on the BasicBlocks with a CJump in its post-dominance frontier.
+        the blocks which can not reach leaveBB are left out, the result is false if there are any.
+     */
+    public boolean calcPostDominatorTree() {
+        HashMap<BasicBlock, Integer> order = new HashMap<>();
+        for(BasicBlock bb : basicblocks) {
+            bb.postIdom = null;
+            bb.controlDependence.clear();
+        }
+        for(BasicBlock bb : reversePostOrderOnReverseCFG)
+            order.put(bb, order.size());
+
+        leaveBB.postIdom = leaveBB;
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(BasicBlock bb : reversePostOrderOnReverseCFG) {
+                if(bb == leaveBB)
+                    continue;
+                BasicBlock newIdom = null;
+                for(BasicBlock succ : bb.successors) {
+                    if(succ.postIdom == null)
+                        continue;
+                    newIdom = newIdom == null ? succ : intersectOnReversedCFG(succ, newIdom, order);
+                }
+                if(newIdom != bb.postIdom) {
+                    bb.postIdom = newIdom;
+                    changed = true;
+                }
+            }
+        }
+        leaveBB.postIdom = null;
+
+        for(BasicBlock bb : reversePostOrderOnReverseCFG) {
+            if(bb.successors.size() < 2)
+                continue;
+            for(BasicBlock succ : bb.successors) {
+                if(!order.containsKey(succ))
+                    continue;
+                for(BasicBlock runner = succ; runner != bb.postIdom; runner = runner.postIdom)
+                    runner.controlDependence.add(bb);
+            }
+        }
+        return order.keySet().containsAll(reversePostOrder);
+    }
+
+    private BasicBlock intersectOnReversedCFG(BasicBlock a, BasicBlock b, HashMap<BasicBlock, Integer> order) {
+        while(a != b) {
+            while(order.get(a) > order.get(b))
+                a = a.postIdom;
+            while(order.get(b) > order.get(a))
+                b = b.postIdom;
+        }
+        return a;
+    }
+
+    //  whether a dominates b, it requires calcDominatorTree and b to be reachable
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        for(; b != null; b = b.idom) {
+            if(a == b)
+                return true;
+        }
+        return false;
+    }
+
     private LinkedList<PhysicalRegister> trans(LinkedList<Register> regs) {
         LinkedList<PhysicalRegister> ret = new LinkedList<>();
         for(Register r : regs) {
@@ -159,6 +318,9 @@ public class Function {
                     continue;
                 if(inst instanceof Call) {
                     usedPhysicalRegisters.addAll(RegisterSet.callerSave);
+                } else if(inst instanceof Cdq) {
+                    usedPhysicalRegisters.add(RegisterSet.rax);
+                    usedPhysicalRegisters.add(RegisterSet.rdx);
                 } else if(inst instanceof BinaryInst && isSpecialBinaryOp(((BinaryInst) inst).op)) {
 //                    usedPhysicalRegisters.addAll(trans(inst.getUseRegs()));
                     if(((BinaryInst) inst).src instanceof Register)
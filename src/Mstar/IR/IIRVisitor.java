@@ -26,5 +26,6 @@ public interface IIRVisitor {
     void visit(Call inst);
     void visit(Leave inst);
     void visit(Cdq inst);
+    void visit(Phi inst);
     void visit(FunctionAddress operand);
 }
@@ -72,6 +72,17 @@ public class Call extends IRInstruction {
 
     @Override
     public void renameUseReg(HashMap<Register, Register> renameMap) {
+        //  the arguments are only used before IRCorrector moves them into the argument registers
+        for(int i = 0; i < args.size(); i++) {
+            Operand operand = args.get(i);
+            if(operand instanceof Register && renameMap.containsKey(operand)) {
+                args.set(i, renameMap.get(operand));
+            } else if(operand instanceof Memory) {
+                Memory memory = ((Memory) operand).copy();
+                memory.renameUseReg(renameMap);
+                args.set(i, memory);
+            }
+        }
     }
 
     @Override
@@ -5,9 +5,13 @@ import Mstar.IR.IIRVisitor;
 import Mstar.IR.Operand.Register;
 import Mstar.IR.Operand.StackSlot;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 
+import static Mstar.IR.RegisterSet.vrax;
+import static Mstar.IR.RegisterSet.vrdx;
+
 public class Cdq extends IRInstruction {
     public Cdq(BasicBlock bb) {
         super(bb);
@@ -19,10 +23,10 @@ public class Cdq extends IRInstruction {
     public void renameDefReg(HashMap<Register, Register> renameMap) { }
 
     @Override
-    public LinkedList<Register> getDefRegs() { return new LinkedList<>(); }
+    public LinkedList<Register> getDefRegs() { return new LinkedList<>(Collections.singletonList(vrdx)); }
 
     @Override
-    public LinkedList<Register> getUseRegs() { return new LinkedList<>(); }
+    public LinkedList<Register> getUseRegs() { return new LinkedList<>(Collections.singletonList(vrax)); }
 
     @Override
     public LinkedList<StackSlot> getStackSlots() { return new LinkedList<>(); }
@@ -23,7 +23,6 @@ public class Lea extends IRInstruction {
     public LinkedList<Register> getUseRegs() {
         LinkedList<Register> regs = new LinkedList<>();
         regs.addAll(src.getUseRegs());
-        regs.add(dest);
         return regs;
     }
 
@@ -0,0 +1,66 @@
+package Mstar.IR.Instruction;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.IIRVisitor;
+import Mstar.IR.Operand.*;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/*
+    dest = phi(pred1: src1, pred2: src2, ...)
+    it only lives at the head of a BasicBlock while the function is in SSA form,
+    paths maps every predecessor of bb to the value dest gets when coming from it.
+ */
+public class Phi extends IRInstruction {
+    public VirtualRegister dest;
+    public HashMap<BasicBlock, Operand> paths;
+
+    public Phi(BasicBlock bb, VirtualRegister dest) {
+        super(bb);
+        this.dest = dest;
+        this.paths = new HashMap<>();
+    }
+
+    @Override
+    public LinkedList<Register> getUseRegs() {
+        LinkedList<Register> regs = new LinkedList<>();
+        for(Operand operand : paths.values()) {
+            if(operand instanceof Register && !regs.contains(operand))
+                regs.add((Register) operand);
+        }
+        return regs;
+    }
+
+    @Override
+    public LinkedList<Register> getDefRegs() {
+        LinkedList<Register> regs = new LinkedList<>();
+        regs.add(dest);
+        return regs;
+    }
+
+    @Override
+    public LinkedList<StackSlot> getStackSlots() {
+        return new LinkedList<>();
+    }
+
+    @Override
+    public void renameUseReg(HashMap<Register, Register> renameMap) {
+        for(BasicBlock pred : paths.keySet()) {
+            Operand operand = paths.get(pred);
+            if(operand instanceof Register && renameMap.containsKey(operand))
+                paths.put(pred, renameMap.get(operand));
+        }
+    }
+
+    @Override
+    public void renameDefReg(HashMap<Register, Register> renameMap) {
+        if(renameMap.containsKey(dest))
+            dest = (VirtualRegister) renameMap.get(dest);
+    }
+
+    @Override
+    public void accept(IIRVisitor visitor) {
+        visitor.visit(this);
+    }
+}
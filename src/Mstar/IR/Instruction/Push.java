@@ -23,6 +23,8 @@ public class Push extends IRInstruction {
         LinkedList<Register> regs = new LinkedList<>();
         if(src instanceof Memory)
             regs.addAll(((Memory) src).getUseRegs());
+        else if(src instanceof Register)
+            regs.add((Register) src);
         return regs;
     }
 
@@ -36,21 +38,16 @@ public class Push extends IRInstruction {
         if(src instanceof Memory) {
             src = ((Memory) src).copy();
             ((Memory) src).renameUseReg(renameMap);
-        }
+        } else if(src instanceof Register && renameMap.containsKey(src))
+            src = renameMap.get(src);
     }
 
     @Override
-    public void renameDefReg(HashMap<Register, Register> renameMap) {
-        if(src instanceof Register && renameMap.containsKey(src))
-            src = renameMap.get(src);
-    }
+    public void renameDefReg(HashMap<Register, Register> renameMap) { }
 
     @Override
     public LinkedList<Register> getDefRegs() {
-        LinkedList<Register> regs = new LinkedList<>();
-        if(src instanceof Register)
-            regs.add((Register) src);
-        return regs;
+        return new LinkedList<>();
     }
 
     @Override
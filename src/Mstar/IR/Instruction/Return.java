@@ -10,6 +10,8 @@ import java.util.HashMap;
 import java.util.LinkedList;
 
 public class Return extends IRInstruction {
+    //  a tail call leaves by jumping to the callee, which returns to our caller
+    public Call tailCall = null;
 
     public Return(BasicBlock bb) {
         super(bb);
@@ -26,6 +28,8 @@ public class Return extends IRInstruction {
 
     @Override
     public LinkedList<Register> getUseRegs() {
+        if(tailCall != null)
+            return tailCall.getUseRegs();
         LinkedList<Register> regs = new LinkedList<>();
         if(bb.function.hasReturnValue)
             regs.add(RegisterSet.vrax);
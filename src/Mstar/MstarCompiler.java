@@ -54,19 +54,34 @@ public class MstarCompiler {
                 switch (arg) {
                     case "--no-optimize":
                         Config.useUselessInstructionElimination = false;
-                        Config.useLocalValueNumberOptimization = false;
+                        Config.useGlobalValueNumberOptimization = false;
                         Config.useOutputIrrelevantElimination = false;
                         Config.useBackupOptimization = false;
                         Config.useInlineOptimization = false;
+                        Config.useMemoryOperandFolding = false;
+                        Config.useSSA = false;
+                        Config.useSparseConditionalConstantPropagation = false;
+                        Config.useLoopInvariantCodeMotion = false;
+                        Config.useInductionVariableOptimization = false;
+                        Config.usePartialRedundancyElimination = false;
+                        Config.useAggressiveDeadCodeElimination = false;
+                        Config.useCopyPropagation = false;
+                        Config.useControlFlowGraphSimplification = false;
+                        Config.useBasicBlockLayout = false;
+                        Config.useFunctionInlining = false;
+                        Config.useGlobalModRefAnalysis = false;
+                        Config.useEffectAnalysis = false;
+                        Config.useTailRecursionElimination = false;
+                        Config.useTailCallOptimization = false;
                         break;
                     case "--printAST":
                         Config.printAST = true;
                         break;
                     case "--printIR":
                         Config.printIR = true;
+                        Config.printIRInSSAForm = true;
                         Config.printIRAfterUselessInstructionElimination = true;
                         Config.printIRWithFrame = true;
-                        Config.printIRAfterLocalValueNumberOptimization = true;
                         Config.printIRAfterAllocator = true;
                         break;
                     case "-o":
@@ -191,18 +206,70 @@ public class MstarCompiler {
             irPrinter.printTo(System.err);
         }
 
-        if(Config.useLocalValueNumberOptimization) {
-            LocalValueNumberOptimizer localValueNumberOptimizer = new LocalValueNumberOptimizer(irProgram);
-            localValueNumberOptimizer.run();
-            if(Config.printIRAfterLocalValueNumberOptimization) {
-                System.err.println("====================================================================");
-                System.err.println("Intermediate Representation After Local Value Numbering Optimization");
+        if(Config.useTailRecursionElimination) {
+            TailRecursionEliminator tailRecursionEliminator = new TailRecursionEliminator(irProgram);
+            tailRecursionEliminator.run();
+        }
+        if(Config.useFunctionInlining) {
+            FunctionInliner functionInliner = new FunctionInliner(irProgram);
+            functionInliner.run();
+        }
+        if(Config.useControlFlowGraphSimplification) {
+            ControlFlowGraphSimplifier controlFlowGraphSimplifier = new ControlFlowGraphSimplifier(irProgram);
+            controlFlowGraphSimplifier.run();
+        }
+        if(Config.useEffectAnalysis) {
+            FunctionEffectAnalyzer functionEffectAnalyzer = new FunctionEffectAnalyzer(irProgram);
+            functionEffectAnalyzer.run();
+        }
+
+        //  IR -> IR in SSA form -> IR
+        if(Config.useSSA) {
+            SSAConstructor ssaConstructor = new SSAConstructor(irProgram);
+            ssaConstructor.run();
+            if(Config.useSparseConditionalConstantPropagation) {
+                SparseConditionalConstantPropagator sparseConditionalConstantPropagator = new SparseConditionalConstantPropagator(irProgram);
+                sparseConditionalConstantPropagator.run();
+            }
+            if(Config.useGlobalValueNumberOptimization) {
+                GlobalValueNumberOptimizer globalValueNumberOptimizer = new GlobalValueNumberOptimizer(irProgram);
+                globalValueNumberOptimizer.run();
+            }
+            if(Config.useCopyPropagation) {
+                CopyPropagator copyPropagator = new CopyPropagator(irProgram);
+                copyPropagator.run();
+            }
+            if(Config.useLoopInvariantCodeMotion) {
+                LoopInvariantCodeMover loopInvariantCodeMover = new LoopInvariantCodeMover(irProgram);
+                loopInvariantCodeMover.run();
+            }
+            if(Config.useInductionVariableOptimization) {
+                InductionVariableOptimizer inductionVariableOptimizer = new InductionVariableOptimizer(irProgram);
+                inductionVariableOptimizer.run();
+            }
+            if(Config.useAggressiveDeadCodeElimination) {
+                AggressiveDeadCodeEliminator aggressiveDeadCodeEliminator = new AggressiveDeadCodeEliminator(irProgram);
+                aggressiveDeadCodeEliminator.run();
+            }
+            if(Config.printIRInSSAForm) {
+                System.err.println("==================================");
+                System.err.println("Intermediate Representation in SSA");
                 IRPrinter irPrinter = new IRPrinter();
                 irPrinter.visit(irProgram);
                 irPrinter.printTo(System.err);
             }
+            SSADestructor ssaDestructor = new SSADestructor(irProgram);
+            ssaDestructor.run();
         }
 
+        if(Config.usePartialRedundancyElimination) {
+            PartialRedundancyEliminator partialRedundancyEliminator = new PartialRedundancyEliminator(irProgram);
+            partialRedundancyEliminator.run();
+        }
+        if(Config.useControlFlowGraphSimplification) {
+            ControlFlowGraphSimplifier controlFlowGraphSimplifier = new ControlFlowGraphSimplifier(irProgram);
+            controlFlowGraphSimplifier.run();
+        }
 
         if(Config.useUselessInstructionElimination) {
             UselessInstructionEliminater uselessInstructionEliminater = new UselessInstructionEliminater(irProgram);
@@ -216,7 +283,10 @@ public class MstarCompiler {
             }
         }
 
-
+        if(Config.useGlobalModRefAnalysis) {
+            GlobalModRefAnalyzer globalModRefAnalyzer = new GlobalModRefAnalyzer(irProgram);
+            globalModRefAnalyzer.run();
+        }
 
         //  correct some invalid use of instruction
         IRCorrector irCorrector = new IRCorrector();
@@ -233,9 +303,11 @@ public class MstarCompiler {
 
         //  IR with VirtualRegister -> IR with PhysicalRegister
         switch (Config.allocator) {
-            case GraphAllocator:
-                assert false;
+            case LinearScanAllocator: {
+                LinearScanAllocator linearScanAllocator = new LinearScanAllocator(irProgram);
+                linearScanAllocator.run();
                 break;
+            }
             case NaiveAllocator: {
                 NaiveAllocator naiveAllocator = new NaiveAllocator(irProgram);
                 naiveAllocator.run();
@@ -255,10 +327,24 @@ public class MstarCompiler {
             irPrinter.printTo(System.err);
         }
 
+        if(Config.useMemoryOperandFolding) {
+            MemoryOperandFolder memoryOperandFolder = new MemoryOperandFolder(irProgram);
+            memoryOperandFolder.run();
+        }
+        if(Config.useTailCallOptimization) {
+            TailCallOptimizer tailCallOptimizer = new TailCallOptimizer(irProgram);
+            tailCallOptimizer.run();
+        }
+
         //  IR with PhysicalRegister -> IR with PhysicalRegister and StackFrame
         StackFrameBuilder stackFrameBuilder = new StackFrameBuilder(irProgram);
         stackFrameBuilder.run();
 
+        if(Config.useBasicBlockLayout) {
+            BasicBlockLayoutOptimizer basicBlockLayoutOptimizer = new BasicBlockLayoutOptimizer(irProgram);
+            basicBlockLayoutOptimizer.run();
+        }
+
         if(Config.printIRWithFrame) {
             System.err.println("===========================================");
             System.err.println("Intermediate Representation With StackFrame");
@@ -267,6 +353,7 @@ public class MstarCompiler {
             irPrinter.showHeader = false;
             irPrinter.visit(irProgram);
             irPrinter.printTo(System.err);
+            stackFrameBuilder.printTo(System.err);
         }
 
         if(Config.printToAsmFile) {
@@ -0,0 +1,179 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.Operand;
+import Mstar.IR.Operand.Register;
+import Mstar.IR.Operand.VirtualRegister;
+
+import java.util.*;
+
+/*
+    aggressive dead code elimination (Cytron et al.) on the SSA form.
+    every instruction is dead until it is proven live, starting from the instructions with side effects:
+    calls which may write (see FunctionEffectAnalyzer), returns, stores to memory, and the definitions of the registers which are written back
+    to memory (the globals and the parameters on the stack, which have a spillPlace).
+    a live instruction makes live
+        the definition chains (or Phis) of the SSA registers it uses,
+        the definitions of the precolored registers it uses, looked up backwards along the CFG,
+        the CJumps its BasicBlock is control dependent on,
+        and for a Phi, the branch of every predecessor.
+    at last the dead instructions are removed, and a dead CJump becomes a Jump to the nearest
+    post-dominator which has a live instruction, so the dead loops and dead branches disappear.
+
+    a loop which can not reach leaveBB may never end, so all the CJumps of such a function are live.
+    a loop which can reach leaveBB is not proven to end: when nothing it computes is used, it is deleted
+    all the same. this is intended, OutputIrrelevantEliminator drops such loops at the AST level too.
+ */
+public class AggressiveDeadCodeEliminator {
+    private IRProgram irProgram;
+
+    //  for process function
+    private Function function;
+    private HashMap<VirtualRegister, LinkedList<IRInstruction>> chains;
+    private HashMap<VirtualRegister, Phi> phis;
+    private HashSet<IRInstruction> liveInstructions;
+    private HashSet<BasicBlock> usefulBlocks;
+    private LinkedList<IRInstruction> worklist;
+
+    public AggressiveDeadCodeEliminator(IRProgram irProgram) {
+        this.irProgram = irProgram;
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    private boolean hasSideEffect(IRInstruction inst) {
+        if(inst instanceof Return || inst instanceof Leave || inst instanceof Push || inst instanceof Pop)
+            return true;
+        if(GlobalValueNumberOptimizer.isMemoryWrite(inst))
+            return true;
+        for(Register reg : inst.getDefRegs()) {
+            if(reg instanceof VirtualRegister && ((VirtualRegister) reg).spillPlace != null)
+                return true;
+        }
+        return false;
+    }
+
+    private void markLive(IRInstruction inst) {
+        if(inst != null && liveInstructions.add(inst))
+            worklist.add(inst);
+    }
+
+    private void markDefinition(Operand operand) {
+        if(!SSAConstructor.isRenamable(operand))
+            return;
+        VirtualRegister vr = (VirtualRegister) operand;
+        if(phis.containsKey(vr))
+            markLive(phis.get(vr));
+        if(chains.containsKey(vr)) {
+            for(IRInstruction inst : chains.get(vr))
+                markLive(inst);
+        }
+    }
+
+    //  the last definition of reg before inst in bb, or null
+    private IRInstruction findDefinition(Register reg, IRInstruction inst) {
+        for(; inst != null && !(inst instanceof Phi); inst = inst.prev) {
+            if(inst.getDefRegs().contains(reg))
+                return inst;
+        }
+        return null;
+    }
+
+    //  the definitions of a precolored register which reach inst
+    private void markReachingDefinitions(Register reg, IRInstruction inst) {
+        IRInstruction def = findDefinition(reg, inst.prev);
+        if(def != null) {
+            markLive(def);
+            return;
+        }
+        HashSet<BasicBlock> visited = new HashSet<>();
+        LinkedList<BasicBlock> queue = new LinkedList<>(inst.bb.frontiers);
+        while(!queue.isEmpty()) {
+            BasicBlock bb = queue.removeFirst();
+            if(!visited.add(bb))
+                continue;
+            def = findDefinition(reg, bb.tail);
+            if(def != null)
+                markLive(def);
+            else
+                queue.addAll(bb.frontiers);
+        }
+    }
+
+    private void markUseful(BasicBlock bb) {
+        if(!usefulBlocks.add(bb))
+            return;
+        for(BasicBlock dependence : bb.controlDependence)
+            markLive(dependence.tail);
+    }
+
+    private void propagate() {
+        while(!worklist.isEmpty()) {
+            IRInstruction inst = worklist.removeFirst();
+            markUseful(inst.bb);
+            if(inst instanceof Phi) {
+                for(Map.Entry<BasicBlock, Operand> entry : ((Phi) inst).paths.entrySet()) {
+                    markDefinition(entry.getValue());
+                    markLive(entry.getKey().tail);
+                }
+                continue;
+            }
+            LinkedList<Register> used = inst instanceof Call ? ((Call) inst).getCallUsed() : inst.getUseRegs();
+            for(Register reg : used) {
+                if(SSAConstructor.isRenamable(reg))
+                    markDefinition(reg);
+                else if(reg instanceof VirtualRegister && ((VirtualRegister) reg).spillPlace == null)
+                    markReachingDefinitions(reg, inst);
+            }
+        }
+    }
+
+    private void sweep() {
+        for(BasicBlock bb : function.basicblocks) {
+            IRInstruction next;
+            for(IRInstruction inst = bb.head; inst != null; inst = next) {
+                next = inst.next;
+                if(liveInstructions.contains(inst) || inst instanceof Jump)
+                    continue;
+                if(inst instanceof CJump) {
+                    BasicBlock target = bb.postIdom;
+                    while(!usefulBlocks.contains(target))
+                        target = target.postIdom;
+                    inst.prepend(new Jump(bb, target));
+                }
+                inst.remove();
+            }
+        }
+        function.removeUnreachableBasicBlocks();
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst instanceof Phi; inst = inst.next)
+                ((Phi) inst).paths.keySet().removeIf(pred -> !bb.frontiers.contains(pred));
+        }
+    }
+
+    private void processFunction(Function function) {
+        this.function = function;
+        boolean reachLeave = function.calcPostDominatorTree();
+        chains = SSAConstructor.getDefinitionChains(function);
+        phis = new HashMap<>();
+        liveInstructions = new HashSet<>();
+        usefulBlocks = new HashSet<>();
+        worklist = new LinkedList<>();
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(inst instanceof Phi)
+                    phis.put(((Phi) inst).dest, (Phi) inst);
+                if(hasSideEffect(inst) || (!reachLeave && inst instanceof CJump))
+                    markLive(inst);
+            }
+        }
+        propagate();
+        sweep();
+    }
+}
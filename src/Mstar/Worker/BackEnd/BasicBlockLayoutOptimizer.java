@@ -0,0 +1,177 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.CJump;
+import Mstar.IR.Instruction.Jump;
+
+import java.util.*;
+
+/*
+    place the BasicBlocks for fall-through by the bottom-up chaining of Pettis and Hansen,
+    with static estimates instead of a profile:
+        a block in a loop of depth d runs 10^d times,
+        a branch back into the loop or staying in it is taken 9 times out of 10, a loop exit once,
+        the other branches are even.
+    the edges are visited from the heaviest, an edge a -> b links the chain ending with a to the chain
+    starting with b. the chain of enterBB goes first, then the chain most strongly entered from the
+    placed blocks, so the loop exits and the cold paths end up out of line.
+    a CJump is inverted when its then block is the next one, so the likely edge falls through, and
+    a block in a loop which is the target of a branch but is not fallen into is aligned to 16 bytes.
+ */
+public class BasicBlockLayoutOptimizer {
+    private static class Edge {
+        BasicBlock from, to;
+        double weight;
+        int order;
+
+        Edge(BasicBlock from, BasicBlock to, double weight, int order) {
+            this.from = from;
+            this.to = to;
+            this.weight = weight;
+            this.order = order;
+        }
+    }
+
+    private IRProgram irProgram;
+    private LoopAnalyzer loopAnalyzer;
+
+    //  for process function
+    private Function function;
+    private HashMap<BasicBlock, LinkedList<BasicBlock>> chainOf;
+
+    public BasicBlockLayoutOptimizer(IRProgram irProgram) {
+        this.irProgram = irProgram;
+        this.loopAnalyzer = new LoopAnalyzer();
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    private double getFrequency(BasicBlock bb) {
+        return Math.pow(10, Math.min(loopAnalyzer.getLoopDepth(bb), 8));
+    }
+
+    //  whether the edge from -> to stays in (or goes back into) a loop containing from
+    private boolean staysInLoop(BasicBlock from, BasicBlock to) {
+        for(HashSet<BasicBlock> body : loopAnalyzer.loops.values()) {
+            if(body.contains(from) && body.contains(to))
+                return true;
+        }
+        return false;
+    }
+
+    private double getProbability(BasicBlock from, BasicBlock to) {
+        if(from.successors.size() < 2)
+            return 1;
+        BasicBlock other = from.successors.get(0) == to ? from.successors.get(1) : from.successors.get(0);
+        boolean stays = staysInLoop(from, to);
+        boolean otherStays = staysInLoop(from, other);
+        if(stays && !otherStays)
+            return 0.9;
+        if(!stays && otherStays)
+            return 0.1;
+        return 0.5;
+    }
+
+    private LinkedList<Edge> getEdges() {
+        LinkedList<Edge> edges = new LinkedList<>();
+        for(BasicBlock bb : function.reversePostOrder) {
+            for(BasicBlock succ : new LinkedHashSet<>(bb.successors))
+                edges.add(new Edge(bb, succ, getFrequency(bb) * getProbability(bb, succ), edges.size()));
+        }
+        edges.sort((a, b) -> a.weight != b.weight ? Double.compare(b.weight, a.weight) : Integer.compare(a.order, b.order));
+        return edges;
+    }
+
+    private void buildChains(LinkedList<Edge> edges) {
+        chainOf = new HashMap<>();
+        for(BasicBlock bb : function.reversePostOrder)
+            chainOf.put(bb, new LinkedList<>(Collections.singletonList(bb)));
+        for(Edge edge : edges) {
+            LinkedList<BasicBlock> fromChain = chainOf.get(edge.from);
+            LinkedList<BasicBlock> toChain = chainOf.get(edge.to);
+            if(fromChain == toChain || fromChain.getLast() != edge.from || toChain.getFirst() != edge.to
+                    || edge.to == function.enterBB)
+                continue;
+            fromChain.addAll(toChain);
+            for(BasicBlock bb : toChain)
+                chainOf.put(bb, fromChain);
+        }
+    }
+
+    private LinkedList<BasicBlock> placeChains(LinkedList<Edge> edges) {
+        LinkedList<BasicBlock> layout = new LinkedList<>();
+        HashSet<LinkedList<BasicBlock>> placed = new HashSet<>();
+        LinkedList<BasicBlock> chain = chainOf.get(function.enterBB);
+        while(chain != null) {
+            placed.add(chain);
+            layout.addAll(chain);
+            //  the unplaced chain entered with the heaviest edge from the placed ones, or the first in RPO
+            HashMap<LinkedList<BasicBlock>, Double> connection = new HashMap<>();
+            for(Edge edge : edges) {
+                LinkedList<BasicBlock> toChain = chainOf.get(edge.to);
+                if(placed.contains(chainOf.get(edge.from)) && !placed.contains(toChain))
+                    connection.merge(toChain, edge.weight, Double::sum);
+            }
+            chain = null;
+            double best = -1;
+            for(BasicBlock bb : function.reversePostOrder) {
+                LinkedList<BasicBlock> candidate = chainOf.get(bb);
+                if(placed.contains(candidate))
+                    continue;
+                double weight = connection.getOrDefault(candidate, 0.0);
+                if(weight > best) {
+                    best = weight;
+                    chain = candidate;
+                }
+            }
+        }
+        return layout;
+    }
+
+    private boolean fallsInto(BasicBlock bb, BasicBlock next) {
+        if(bb.tail instanceof Jump)
+            return ((Jump) bb.tail).targetBB == next;
+        if(bb.tail instanceof CJump)
+            return ((CJump) bb.tail).elseBB == next;
+        return false;
+    }
+
+    private void processFunction(Function function) {
+        this.function = function;
+        function.finishBuild();
+        loopAnalyzer.analyze(function);
+        LinkedList<Edge> edges = getEdges();
+        buildChains(edges);
+        LinkedList<BasicBlock> layout = placeChains(edges);
+
+        function.alignedBasicBlocks.clear();
+        BasicBlock prev = null;
+        for(BasicBlock bb : layout) {
+            if(prev != null && prev.tail instanceof CJump) {
+                CJump cJump = (CJump) prev.tail;
+                if(cJump.thenBB == bb && cJump.elseBB != bb) {
+                    cJump.op = cJump.getNegativeCompareOp();
+                    cJump.thenBB = cJump.elseBB;
+                    cJump.elseBB = bb;
+                }
+            }
+            prev = bb;
+        }
+        prev = null;
+        for(BasicBlock bb : layout) {
+            if(prev != null && loopAnalyzer.getLoopDepth(bb) > 0 && !fallsInto(prev, bb)) {
+                for(BasicBlock pred : bb.frontiers) {
+                    if(staysInLoop(pred, bb))
+                        function.alignedBasicBlocks.add(bb);
+                }
+            }
+            prev = bb;
+        }
+        function.layout = layout;
+    }
+}
@@ -0,0 +1,185 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.Immediate;
+import Mstar.IR.Operand.Operand;
+import Mstar.IR.Operand.Register;
+
+import java.util.*;
+
+/*
+    simplify the CFG of the functions outside of SSA form (there are no Phis to fix),
+    repeated until nothing changes:
+        a CJump whose targets are the same becomes a Jump,
+        a jump to a BasicBlock with only a Jump goes to the final target directly,
+        a jump to a BasicBlock with only a CJump which re-tests a known condition goes to the known target:
+            after a CJump on the same operands, or after "mov t, imm; jmp" when the test is on t,
+        a BasicBlock is merged into its only predecessor if that one jumps to it unconditionally,
+        and the BasicBlocks which can not be reached any more are dropped.
+    enterBB and leaveBB are kept as they are.
+ */
+public class ControlFlowGraphSimplifier {
+    private IRProgram irProgram;
+
+    //  for process function
+    private Function function;
+
+    public ControlFlowGraphSimplifier(IRProgram irProgram) {
+        this.irProgram = irProgram;
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    private boolean isEmptyJump(BasicBlock bb) {
+        return bb != function.enterBB && bb != function.leaveBB && bb.head == bb.tail && bb.tail instanceof Jump;
+    }
+
+    private boolean isOnlyCJump(BasicBlock bb) {
+        return bb != function.enterBB && bb != function.leaveBB && bb.head == bb.tail && bb.tail instanceof CJump;
+    }
+
+    //  the target of a chain of empty blocks
+    private BasicBlock forward(BasicBlock bb) {
+        HashSet<BasicBlock> visited = new HashSet<>();
+        while(isEmptyJump(bb) && visited.add(bb))
+            bb = ((Jump) bb.tail).targetBB;
+        return bb;
+    }
+
+    private CJump.CompareOp getSwappedCompareOp(CJump.CompareOp op) {
+        switch(op) {
+            case G: return CJump.CompareOp.L;
+            case L: return CJump.CompareOp.G;
+            case GE: return CJump.CompareOp.LE;
+            case LE: return CJump.CompareOp.GE;
+            default: return op;
+        }
+    }
+
+    //  where test goes when the condition of cJump is known to be taken (or not)
+    private BasicBlock getKnownTarget(CJump cJump, boolean taken, CJump test) {
+        CJump.CompareOp op = cJump.op;
+        if(test.src1 == cJump.src2 && test.src2 == cJump.src1 && test.src1 != test.src2)
+            op = getSwappedCompareOp(op);
+        else if(!(test.src1 == cJump.src1 && test.src2 == cJump.src2))
+            return null;
+        if(test.op == op)
+            return taken ? test.thenBB : test.elseBB;
+        CJump negative = new CJump(null, null, op, null, null, null);
+        if(test.op == negative.getNegativeCompareOp())
+            return taken ? test.elseBB : test.thenBB;
+        return null;
+    }
+
+    //  the immediate the operand surely holds at the end of bb, or null
+    private Immediate getKnownValue(BasicBlock bb, Operand operand) {
+        if(operand instanceof Immediate)
+            return (Immediate) operand;
+        for(IRInstruction inst = bb.tail; inst != null; inst = inst.prev) {
+            if(!inst.getDefRegs().contains(operand))
+                continue;
+            if(inst instanceof Move && ((Move) inst).dest == operand && ((Move) inst).src instanceof Immediate)
+                return (Immediate) ((Move) inst).src;
+            return null;
+        }
+        return null;
+    }
+
+    private boolean threadJump(BasicBlock bb) {
+        Jump jump = (Jump) bb.tail;
+        BasicBlock target = forward(jump.targetBB);
+        if(isOnlyCJump(target)) {
+            CJump test = (CJump) target.tail;
+            Immediate lhs = getKnownValue(bb, test.src1);
+            Immediate rhs = getKnownValue(bb, test.src2);
+            if(lhs != null && rhs != null && (test.src1 instanceof Register || test.src2 instanceof Register))
+                target = forward(new CJump(null, lhs, test.op, rhs, test.thenBB, test.elseBB).doCompare());
+        }
+        if(target == jump.targetBB)
+            return false;
+        jump.targetBB = target;
+        return true;
+    }
+
+    private boolean threadCJump(BasicBlock bb) {
+        CJump cJump = (CJump) bb.tail;
+        BasicBlock thenBB = forward(cJump.thenBB);
+        BasicBlock elseBB = forward(cJump.elseBB);
+        if(isOnlyCJump(thenBB) && thenBB != bb) {
+            BasicBlock known = getKnownTarget(cJump, true, (CJump) thenBB.tail);
+            if(known != null)
+                thenBB = forward(known);
+        }
+        if(isOnlyCJump(elseBB) && elseBB != bb) {
+            BasicBlock known = getKnownTarget(cJump, false, (CJump) elseBB.tail);
+            if(known != null)
+                elseBB = forward(known);
+        }
+        if(thenBB == elseBB) {
+            cJump.prepend(new Jump(bb, thenBB));
+            cJump.remove();
+            return true;
+        }
+        if(thenBB == cJump.thenBB && elseBB == cJump.elseBB)
+            return false;
+        cJump.thenBB = thenBB;
+        cJump.elseBB = elseBB;
+        return true;
+    }
+
+    //  move the instructions of succ to the end of bb
+    private void merge(BasicBlock bb, BasicBlock succ) {
+        bb.tail.remove();
+        for(IRInstruction inst = succ.head; inst != null; inst = inst.next)
+            inst.bb = bb;
+        if(bb.head == null) {
+            bb.head = succ.head;
+        } else {
+            bb.tail.next = succ.head;
+            succ.head.prev = bb.tail;
+        }
+        bb.tail = succ.tail;
+        succ.head = succ.tail = null;
+        function.basicblocks.remove(succ);
+    }
+
+    private boolean mergeBasicBlocks() {
+        boolean changed = false;
+        for(BasicBlock bb : new ArrayList<>(function.reversePostOrder)) {
+            if(!function.basicblocks.contains(bb))
+                continue;
+            while(bb.tail instanceof Jump) {
+                BasicBlock succ = ((Jump) bb.tail).targetBB;
+                if(succ == bb || succ == function.enterBB || succ == function.leaveBB || succ.frontiers.size() != 1)
+                    break;
+                merge(bb, succ);
+                function.finishBuild();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void processFunction(Function function) {
+        this.function = function;
+        function.removeUnreachableBasicBlocks();
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(BasicBlock bb : function.basicblocks) {
+                if(bb.tail instanceof Jump)
+                    changed |= threadJump(bb);
+                else if(bb.tail instanceof CJump)
+                    changed |= threadCJump(bb);
+            }
+            function.removeUnreachableBasicBlocks();
+            changed |= mergeBasicBlocks();
+        }
+    }
+}
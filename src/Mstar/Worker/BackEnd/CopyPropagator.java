@@ -0,0 +1,97 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.Operand;
+import Mstar.IR.Operand.Register;
+import Mstar.IR.Operand.VirtualRegister;
+
+import java.util.*;
+
+/*
+    global copy propagation on the SSA form.
+    an SSA register whose whole definition chain is "mov v, w" with another SSA register w,
+    or whose Phi gets the same register w from every predecessor, is a copy of w:
+    w is defined once and its definition dominates the copy, so every use of v can read w instead.
+    the uses are renamed to the root of the copies and the copies are deleted,
+    the registers copied from rax after a call or from the globals are not touched.
+ */
+public class CopyPropagator {
+    private IRProgram irProgram;
+
+    public CopyPropagator(IRProgram irProgram) {
+        this.irProgram = irProgram;
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    //  the register a Phi copies, null if it merges different values
+    private VirtualRegister getPhiSource(Phi phi) {
+        VirtualRegister source = null;
+        for(Operand operand : phi.paths.values()) {
+            if(operand == phi.dest)
+                continue;
+            if(!SSAConstructor.isRenamable(operand) || (source != null && source != operand))
+                return null;
+            source = (VirtualRegister) operand;
+        }
+        return source;
+    }
+
+    private Register getRoot(HashMap<Register, Register> copyOf, Register reg) {
+        while(copyOf.containsKey(reg))
+            reg = copyOf.get(reg);
+        return reg;
+    }
+
+    private void processFunction(Function function) {
+        HashMap<VirtualRegister, LinkedList<IRInstruction>> chains = SSAConstructor.getDefinitionChains(function);
+        HashMap<Register, Register> copyOf = new HashMap<>();
+        LinkedList<IRInstruction> copies = new LinkedList<>();
+        for(Map.Entry<VirtualRegister, LinkedList<IRInstruction>> entry : chains.entrySet()) {
+            LinkedList<IRInstruction> chain = entry.getValue();
+            if(chain.size() != 1 || !(chain.getFirst() instanceof Move))
+                continue;
+            Operand src = ((Move) chain.getFirst()).src;
+            if(SSAConstructor.isRenamable(src) && src != entry.getKey()) {
+                copyOf.put(entry.getKey(), (Register) src);
+                copies.add(chain.getFirst());
+            }
+        }
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst instanceof Phi; inst = inst.next) {
+                VirtualRegister source = getPhiSource((Phi) inst);
+                if(source != null) {
+                    copyOf.put(((Phi) inst).dest, source);
+                    copies.add(inst);
+                }
+            }
+        }
+        if(copies.isEmpty())
+            return;
+
+        //  a cycle of Phis copying each other can only be reached through unreachable code, leave it
+        HashMap<Register, Register> renameMap = new HashMap<>();
+        for(Register reg : copyOf.keySet()) {
+            HashSet<Register> visited = new HashSet<>();
+            Register root = reg;
+            while(copyOf.containsKey(root) && visited.add(root))
+                root = copyOf.get(root);
+            if(!copyOf.containsKey(root))
+                renameMap.put(reg, getRoot(copyOf, reg));
+        }
+        for(IRInstruction copy : copies) {
+            if(renameMap.containsKey(copy.getDefRegs().getFirst()))
+                copy.remove();
+        }
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next)
+                inst.renameUseReg(renameMap);
+        }
+    }
+}
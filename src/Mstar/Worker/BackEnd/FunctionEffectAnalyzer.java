@@ -0,0 +1,106 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+
+import java.util.*;
+
+/*
+    classify what the calls of every user defined function may do, before SSA construction:
+        Writing, if it stores to memory other than its own stack slots, uses a global variable
+        (the globals live in registers, a call can not tell a read of them from a write),
+        or calls a Writing function,
+        ReadOnly, if it loads from memory other than its own stack slots or calls a ReadOnly function,
+        Pure otherwise, its return value only depends on its arguments.
+    the library functions are annotated in IRBuilder, the memorized functions are Pure since the table only
+    caches the values of a pure function. the effects start at Pure and only grow, so the iteration over
+    the call graph reaches the smallest fixpoint and a recursion not touching memory stays Pure.
+    GlobalValueNumberOptimizer numbers the calls which do not write, LoopInvariantCodeMover moves them out of
+    the loops, AggressiveDeadCodeEliminator and UselessInstructionEliminater delete them when the result is unused.
+    an effect says nothing about termination: an unused call of a function which may never return is deleted
+    all the same, on purpose, like the dead loops in AggressiveDeadCodeEliminator.
+ */
+public class FunctionEffectAnalyzer {
+    private IRProgram irProgram;
+
+    public FunctionEffectAnalyzer(IRProgram irProgram) {
+        this.irProgram = irProgram;
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            function.effect = Function.Effect.Pure;
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(Function function : irProgram.functions) {
+                Function.Effect effect = getEffect(function);
+                if(effect != function.effect) {
+                    function.effect = effect;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    private boolean isSharedMemory(Operand operand) {
+        return operand instanceof Memory && !(operand instanceof StackSlot);
+    }
+
+    private boolean isLoad(IRInstruction inst) {
+        if(inst instanceof Move)
+            return isSharedMemory(((Move) inst).src);
+        if(inst instanceof BinaryInst)
+            return isSharedMemory(((BinaryInst) inst).src);
+        if(inst instanceof CJump)
+            return isSharedMemory(((CJump) inst).src1) || isSharedMemory(((CJump) inst).src2);
+        if(inst instanceof Push)
+            return isSharedMemory(((Push) inst).src);
+        if(inst instanceof Call) {
+            for(Operand operand : ((Call) inst).args) {
+                if(isSharedMemory(operand))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isStore(IRInstruction inst) {
+        if(inst instanceof Move)
+            return isSharedMemory(((Move) inst).dest);
+        if(inst instanceof BinaryInst)
+            return isSharedMemory(((BinaryInst) inst).dest);
+        if(inst instanceof UnaryInst)
+            return isSharedMemory(((UnaryInst) inst).dest);
+        if(inst instanceof Pop)
+            return isSharedMemory(((Pop) inst).dest);
+        return false;
+    }
+
+    private Function.Effect getEffect(Function function) {
+        if(function.memoized)
+            return Function.Effect.Pure;
+        if(!function.usedGlobalVariables.isEmpty())
+            return Function.Effect.Writing;
+        Function.Effect effect = Function.Effect.Pure;
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(isStore(inst))
+                    return Function.Effect.Writing;
+                if(isLoad(inst))
+                    effect = Function.Effect.ReadOnly;
+                if(inst instanceof Call) {
+                    Function.Effect callee = ((Call) inst).func.effect;
+                    if(callee == Function.Effect.Writing)
+                        return Function.Effect.Writing;
+                    if(callee.compareTo(effect) > 0)
+                        effect = callee;
+                }
+            }
+        }
+        return effect;
+    }
+}
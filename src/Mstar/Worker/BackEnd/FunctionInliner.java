@@ -0,0 +1,352 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.Config;
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+import Mstar.Symbol.VariableSymbol;
+
+import java.util.*;
+
+import static Mstar.IR.RegisterSet.vargs;
+import static Mstar.IR.RegisterSet.vrax;
+
+/*
+    inline the calls of user defined functions on the IR, after it is built and before SSA.
+    the functions are visited in bottom-up order of the strongly connected components of the call graph,
+    so a callee has already got its own calls inlined, and the calls inside a component (recursion) stay.
+
+    a call is inlined when the size of the callee is under a threshold growing with the loop depth
+    of the call site and the number of constant arguments, and the caller does not grow too big.
+    the blocks of the callee are cloned with fresh registers:
+        the moves of the arguments into the parameters become moves from the actual arguments,
+        a parameter never assigned in the callee (like the this pointer of a method) is replaced
+        by the argument register itself,
+        the loads and stores of the globals at the entry and exit of the callee are dropped, the caller
+        keeps them in the same registers and loads / stores them at its own entry and exit,
+        the return value moved into rax goes to a new register read after the call,
+        and the return jumps to the rest of the calling block.
+    the functions which can not be inlined: main, the memorized ones (whose return value comes from
+    the insertion into the memo table at the exit), and the ones whose exit can not be reached.
+ */
+public class FunctionInliner {
+    private IRProgram irProgram;
+    private LoopAnalyzer loopAnalyzer;
+
+    private HashMap<Function, Integer> sccId;
+    private HashMap<Function, Integer> sizes;
+
+    public FunctionInliner(IRProgram irProgram) {
+        this.irProgram = irProgram;
+        this.loopAnalyzer = new LoopAnalyzer();
+    }
+
+    public void run() {
+        sizes = new HashMap<>();
+        for(Function function : irProgram.functions)
+            sizes.put(function, getSize(function));
+        for(Function function : getBottomUpOrder())
+            processFunction(function);
+    }
+
+    private LinkedList<Function> getCallees(Function function) {
+        LinkedList<Function> callees = new LinkedList<>();
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(inst instanceof Call && ((Call) inst).func.type == Function.Type.UserDefined
+                        && !callees.contains(((Call) inst).func))
+                    callees.add(((Call) inst).func);
+            }
+        }
+        return callees;
+    }
+
+    //  Tarjan's algorithm, a component is finished after all the components it calls
+    private LinkedList<Function> getBottomUpOrder() {
+        sccId = new HashMap<>();
+        LinkedList<Function> order = new LinkedList<>();
+        HashMap<Function, Integer> index = new HashMap<>();
+        HashMap<Function, Integer> lowLink = new HashMap<>();
+        LinkedList<Function> stack = new LinkedList<>();
+        for(Function function : irProgram.functions) {
+            if(!index.containsKey(function))
+                tarjan(function, index, lowLink, stack, order);
+        }
+        return order;
+    }
+
+    private void tarjan(Function function, HashMap<Function, Integer> index, HashMap<Function, Integer> lowLink,
+                        LinkedList<Function> stack, LinkedList<Function> order) {
+        index.put(function, index.size());
+        lowLink.put(function, index.get(function));
+        stack.push(function);
+        for(Function callee : getCallees(function)) {
+            if(!index.containsKey(callee)) {
+                tarjan(callee, index, lowLink, stack, order);
+                lowLink.put(function, Math.min(lowLink.get(function), lowLink.get(callee)));
+            } else if(stack.contains(callee)) {
+                lowLink.put(function, Math.min(lowLink.get(function), index.get(callee)));
+            }
+        }
+        if(lowLink.get(function).equals(index.get(function))) {
+            int id = sccId.size();
+            Function member;
+            do {
+                member = stack.pop();
+                sccId.put(member, id);
+                order.add(member);
+            } while(member != function);
+        }
+    }
+
+    private int getSize(Function function) {
+        int size = 0;
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next)
+                size++;
+        }
+        return size;
+    }
+
+    private boolean isGlobalLoadOrStore(IRInstruction inst) {
+        if(!(inst instanceof Move))
+            return false;
+        Move move = (Move) inst;
+        if(move.dest instanceof VirtualRegister && ((VirtualRegister) move.dest).spillPlace == move.src)
+            return true;
+        return move.src instanceof VirtualRegister && ((VirtualRegister) move.src).spillPlace == move.dest;
+    }
+
+    private boolean isParameterMove(Function function, IRInstruction inst) {
+        if(inst.bb != function.enterBB || !(inst instanceof Move))
+            return false;
+        int index = function.parameters.indexOf(((Move) inst).dest);
+        if(index < 0)
+            return false;
+        Operand src = ((Move) inst).src;
+        return index < 6 ? src == vargs.get(index) : src == function.parameters.get(index).spillPlace;
+    }
+
+    private boolean isInlinable(Function callee) {
+        if(callee.type != Function.Type.UserDefined || callee.name.equals("main"))
+            return false;
+        if(!callee.reversePostOrder.contains(callee.leaveBB))
+            return false;
+        for(BasicBlock bb : callee.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(inst instanceof Push || inst instanceof Pop)
+                    return false;
+            }
+        }
+        return !callee.hasReturnValue || getReturnValueMoves(callee) != null;
+    }
+
+    //  the last move into rax before each jump to leaveBB, null if a return value is set in another way
+    private HashSet<IRInstruction> getReturnValueMoves(Function callee) {
+        HashSet<IRInstruction> moves = new HashSet<>();
+        for(BasicBlock pred : callee.leaveBB.frontiers) {
+            IRInstruction inst = pred.tail;
+            while(inst != null && !inst.getDefRegs().contains(vrax))
+                inst = inst.prev;
+            if(!(inst instanceof Move) || ((Move) inst).dest != vrax)
+                return null;
+            moves.add(inst);
+        }
+        return moves;
+    }
+
+    private boolean isAssigned(Function callee, VirtualRegister parameter) {
+        for(BasicBlock bb : callee.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(inst.getDefRegs().contains(parameter) && !isParameterMove(callee, inst))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private Operand copyOperand(Operand operand) {
+        return operand instanceof Memory ? ((Memory) operand).copy() : operand;
+    }
+
+    private IRInstruction cloneInstruction(IRInstruction inst, BasicBlock bb, HashMap<BasicBlock, BasicBlock> blockMap) {
+        if(inst instanceof Move)
+            return new Move(bb, (Address) copyOperand(((Move) inst).dest), copyOperand(((Move) inst).src));
+        if(inst instanceof BinaryInst) {
+            BinaryInst binaryInst = (BinaryInst) inst;
+            return new BinaryInst(bb, binaryInst.op, (Address) copyOperand(binaryInst.dest), copyOperand(binaryInst.src));
+        }
+        if(inst instanceof UnaryInst)
+            return new UnaryInst(bb, ((UnaryInst) inst).op, (Address) copyOperand(((UnaryInst) inst).dest));
+        if(inst instanceof Lea)
+            return new Lea(bb, ((Lea) inst).dest, ((Lea) inst).src.copy());
+        if(inst instanceof Cdq)
+            return new Cdq(bb);
+        if(inst instanceof Call) {
+            Call call = (Call) inst;
+            LinkedList<Operand> args = new LinkedList<>();
+            for(Operand arg : call.args)
+                args.add(copyOperand(arg));
+            return new Call(bb, call.dest, call.func, args);
+        }
+        if(inst instanceof CJump) {
+            CJump cJump = (CJump) inst;
+            return new CJump(bb, copyOperand(cJump.src1), cJump.op, copyOperand(cJump.src2),
+                    blockMap.get(cJump.thenBB), blockMap.get(cJump.elseBB));
+        }
+        if(inst instanceof Jump)
+            return new Jump(bb, blockMap.get(((Jump) inst).targetBB));
+        throw new RuntimeException("can not clone " + inst.getClass().getSimpleName());
+    }
+
+    //  the registers of the callee which get fresh ones in the caller
+    private boolean isLocal(Register reg) {
+        return reg instanceof VirtualRegister && ((VirtualRegister) reg).allocatedPhysicalRegister == null
+                && !(((VirtualRegister) reg).spillPlace != null && !(((VirtualRegister) reg).spillPlace instanceof StackSlot));
+    }
+
+    private void addUsedGlobalVariables(Function caller, Function callee) {
+        IRInstruction firstInst = caller.enterBB.head;
+        IRInstruction retInst = caller.leaveBB.tail;
+        for(VariableSymbol vs : callee.usedGlobalVariables) {
+            if(!caller.usedGlobalVariables.add(vs))
+                continue;
+            VirtualRegister vr = vs.virtualRegister;
+            firstInst.prepend(new Move(firstInst.bb, vr, vr.spillPlace));
+            retInst.prepend(new Move(retInst.bb, vr.spillPlace, vr));
+        }
+    }
+
+    private void inline(Call call, Function callee) {
+        Function caller = call.bb.function;
+        BasicBlock bb = call.bb;
+
+        //  split the calling block after the call
+        BasicBlock afterBB = new BasicBlock(caller, "inline_after");
+        afterBB.head = call.next;
+        afterBB.tail = bb.tail;
+        call.next.prev = null;
+        for(IRInstruction inst = afterBB.head; inst != null; inst = inst.next)
+            inst.bb = afterBB;
+        bb.tail = call;
+        call.next = null;
+        if(caller.leaveBB == bb)
+            caller.leaveBB = afterBB;
+
+        HashMap<BasicBlock, BasicBlock> blockMap = new HashMap<>();
+        for(BasicBlock calleeBB : callee.reversePostOrder)
+            blockMap.put(calleeBB, new BasicBlock(caller, "inline_" + calleeBB.hint));
+
+        //  the parameters and the return value
+        HashMap<Register, Register> renameMap = new HashMap<>();
+        BasicBlock entry = blockMap.get(callee.enterBB);
+        LinkedList<IRInstruction> argumentMoves = new LinkedList<>();
+        for(int i = 0; i < callee.parameters.size(); i++) {
+            VirtualRegister parameter = callee.parameters.get(i);
+            Operand arg = call.args.get(i);
+            if(SSAConstructor.isRenamable(arg) && !isAssigned(callee, parameter)) {
+                renameMap.put(parameter, (Register) arg);
+            } else {
+                VirtualRegister vr = new VirtualRegister(parameter.hint);
+                renameMap.put(parameter, vr);
+                argumentMoves.add(new Move(entry, vr, copyOperand(arg)));
+            }
+        }
+        VirtualRegister result = callee.hasReturnValue ? new VirtualRegister("") : null;
+        HashSet<IRInstruction> returnValueMoves = callee.hasReturnValue ? getReturnValueMoves(callee) : new HashSet<>();
+
+        for(BasicBlock calleeBB : callee.reversePostOrder) {
+            BasicBlock newBB = blockMap.get(calleeBB);
+            for(IRInstruction inst = calleeBB.head; inst != null; inst = inst.next) {
+                if(isGlobalLoadOrStore(inst) || isParameterMove(callee, inst))
+                    continue;
+                if(inst instanceof Return) {
+                    newBB.append(new Jump(newBB, afterBB));
+                    continue;
+                }
+                IRInstruction newInst = cloneInstruction(inst, newBB, blockMap);
+                for(Register reg : inst.getUseRegs())
+                    if(isLocal(reg) && !renameMap.containsKey(reg))
+                        renameMap.put(reg, new VirtualRegister(((VirtualRegister) reg).hint));
+                for(Register reg : inst.getDefRegs())
+                    if(isLocal(reg) && !renameMap.containsKey(reg))
+                        renameMap.put(reg, new VirtualRegister(((VirtualRegister) reg).hint));
+                if(inst instanceof Call) {
+                    for(Register reg : ((Call) inst).getCallUsed())
+                        if(isLocal(reg) && !renameMap.containsKey(reg))
+                            renameMap.put(reg, new VirtualRegister(((VirtualRegister) reg).hint));
+                }
+                newInst.renameUseReg(renameMap);
+                newInst.renameDefReg(renameMap);
+                if(returnValueMoves.contains(inst))
+                    ((Move) newInst).dest = result;
+                newBB.append(newInst);
+            }
+        }
+        for(IRInstruction inst : argumentMoves) {
+            if(entry.head == null)
+                entry.append(inst);
+            else
+                entry.head.prepend(inst);
+        }
+
+        //  the call becomes a jump to the inlined body
+        call.prepend(new Jump(bb, entry));
+        call.remove();
+        if(result != null) {
+            IRInstruction next = afterBB.head;
+            if(next instanceof Move && ((Move) next).src == vrax)
+                ((Move) next).src = result;
+            else
+                next.prepend(new Move(afterBB, vrax, result));
+        }
+        addUsedGlobalVariables(caller, callee);
+        caller.hasOutput |= callee.hasOutput;
+    }
+
+    private void processFunction(Function caller) {
+        caller.finishBuild();
+        loopAnalyzer.analyze(caller);
+        //  the depths are taken before any inlining splits the blocks
+        LinkedList<Call> calls = new LinkedList<>();
+        HashMap<Call, Integer> depths = new HashMap<>();
+        for(BasicBlock bb : caller.reversePostOrder) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(inst instanceof Call) {
+                    calls.add((Call) inst);
+                    depths.put((Call) inst, Math.min(loopAnalyzer.getLoopDepth(bb), 3));
+                }
+            }
+        }
+        boolean changed = false;
+        for(Call call : calls) {
+            Function callee = call.func;
+            if(!sccId.containsKey(callee) || sccId.get(callee).equals(sccId.get(caller)) || !isInlinable(callee))
+                continue;
+            int constants = 0;
+            for(Operand arg : call.args) {
+                if(arg instanceof Immediate)
+                    constants++;
+            }
+            int threshold = Config.inlineInstructionThreshold * (depths.get(call) + 1) + 10 * constants;
+            if(sizes.get(callee) > threshold || sizes.get(caller) + sizes.get(callee) > Config.inlineCallerSizeLimit)
+                continue;
+            inline(call, callee);
+            sizes.put(caller, sizes.get(caller) + sizes.get(callee));
+            changed = true;
+        }
+        if(changed) {
+            caller.callee.clear();
+            for(BasicBlock bb : caller.basicblocks) {
+                for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                    if(inst instanceof Call)
+                        caller.callee.add(((Call) inst).func);
+                }
+            }
+            caller.finishBuild();
+            caller.removeUnreachableBasicBlocks();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+import Mstar.Symbol.VariableSymbol;
+
+import java.util.*;
+
+/*
+    interprocedural mod / ref summaries of the global variables, run just before IRCorrector.
+    a global lives in its own register inside a function, loaded at enterBB and stored back at leaveBB.
+    inside a function a global is
+        written, if an instruction other than the load at the entry defines its register,
+        read, if it is written or an instruction other than the store at the exit uses its register
+        (a write counts as a read, the paths not writing it store back the value loaded at the entry).
+    the summaries add up the sets of the callees, over the strongly connected components of the call graph
+    visited bottom-up, so every function of a recursive component gets the same sets.
+    with them
+        the load and the store of a global never read any more are dropped,
+        the store at the exit of a global never written is dropped, the register still holds the memory value,
+        IRCorrector stores a global before a call only if the caller writes it and the callee reads it,
+        and reloads it after the call only if the callee writes it.
+ */
+public class GlobalModRefAnalyzer {
+    private IRProgram irProgram;
+
+    public GlobalModRefAnalyzer(IRProgram irProgram) {
+        this.irProgram = irProgram;
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+        for(LinkedList<Function> component : getBottomUpComponents())
+            summarize(component);
+    }
+
+    //  the Memory of a global may be a copy made while renaming, compare the static data it points to
+    private boolean isGlobalMemory(Operand operand, VirtualRegister vr) {
+        return operand instanceof Memory && !(operand instanceof StackSlot)
+                && ((Memory) operand).base == null && ((Memory) operand).index == null
+                && ((Memory) operand).constant == vr.spillPlace.constant;
+    }
+
+    private boolean isGlobalLoad(IRInstruction inst, VirtualRegister vr) {
+        return inst instanceof Move && ((Move) inst).dest == vr && isGlobalMemory(((Move) inst).src, vr);
+    }
+
+    private boolean isGlobalStore(IRInstruction inst, VirtualRegister vr) {
+        return inst instanceof Move && isGlobalMemory(((Move) inst).dest, vr) && ((Move) inst).src == vr;
+    }
+
+    private LinkedList<Register> getUseRegs(IRInstruction inst) {
+        if(inst instanceof Call)
+            return ((Call) inst).getCallUsed();
+        return inst.getUseRegs();
+    }
+
+    //  the direct read / write sets, and drop the useless loads and stores
+    private void processFunction(Function function) {
+        function.readGlobalVariables.clear();
+        function.writtenGlobalVariables.clear();
+        HashMap<Register, VariableSymbol> globalOf = new HashMap<>();
+        for(VariableSymbol vs : function.usedGlobalVariables)
+            globalOf.put(vs.virtualRegister, vs);
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                for(Register reg : inst.getDefRegs()) {
+                    VariableSymbol vs = globalOf.get(reg);
+                    if(vs != null && !isGlobalLoad(inst, vs.virtualRegister))
+                        function.writtenGlobalVariables.add(vs);
+                }
+                for(Register reg : getUseRegs(inst)) {
+                    VariableSymbol vs = globalOf.get(reg);
+                    if(vs != null && !isGlobalStore(inst, vs.virtualRegister))
+                        function.readGlobalVariables.add(vs);
+                }
+            }
+        }
+        function.readGlobalVariables.addAll(function.writtenGlobalVariables);
+
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                for(VariableSymbol vs : function.usedGlobalVariables) {
+                    VirtualRegister vr = vs.virtualRegister;
+                    if((isGlobalLoad(inst, vr) && !function.readGlobalVariables.contains(vs))
+                            || (isGlobalStore(inst, vr) && !function.writtenGlobalVariables.contains(vs))) {
+                        inst.remove();
+                        break;
+                    }
+                }
+            }
+        }
+        function.usedGlobalVariables.retainAll(function.readGlobalVariables);
+    }
+
+    private LinkedList<Function> getCallees(Function function) {
+        LinkedList<Function> callees = new LinkedList<>();
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(inst instanceof Call && ((Call) inst).func.type == Function.Type.UserDefined
+                        && !callees.contains(((Call) inst).func))
+                    callees.add(((Call) inst).func);
+            }
+        }
+        return callees;
+    }
+
+    //  Tarjan's algorithm, a component is finished after all the components it calls
+    private LinkedList<LinkedList<Function>> getBottomUpComponents() {
+        LinkedList<LinkedList<Function>> components = new LinkedList<>();
+        HashMap<Function, Integer> index = new HashMap<>();
+        HashMap<Function, Integer> lowLink = new HashMap<>();
+        LinkedList<Function> stack = new LinkedList<>();
+        for(Function function : irProgram.functions) {
+            if(!index.containsKey(function))
+                tarjan(function, index, lowLink, stack, components);
+        }
+        return components;
+    }
+
+    private void tarjan(Function function, HashMap<Function, Integer> index, HashMap<Function, Integer> lowLink,
+                        LinkedList<Function> stack, LinkedList<LinkedList<Function>> components) {
+        index.put(function, index.size());
+        lowLink.put(function, index.get(function));
+        stack.push(function);
+        for(Function callee : getCallees(function)) {
+            if(!index.containsKey(callee)) {
+                tarjan(callee, index, lowLink, stack, components);
+                lowLink.put(function, Math.min(lowLink.get(function), lowLink.get(callee)));
+            } else if(stack.contains(callee)) {
+                lowLink.put(function, Math.min(lowLink.get(function), index.get(callee)));
+            }
+        }
+        if(lowLink.get(function).equals(index.get(function))) {
+            LinkedList<Function> component = new LinkedList<>();
+            Function member;
+            do {
+                member = stack.pop();
+                component.add(member);
+            } while(member != function);
+            components.add(component);
+        }
+    }
+
+    private void summarize(LinkedList<Function> component) {
+        HashSet<VariableSymbol> read = new HashSet<>();
+        HashSet<VariableSymbol> written = new HashSet<>();
+        for(Function function : component) {
+            read.addAll(function.readGlobalVariables);
+            written.addAll(function.writtenGlobalVariables);
+            for(Function callee : getCallees(function)) {
+                read.addAll(callee.recursiveReadGlobalVariables);
+                written.addAll(callee.recursiveWrittenGlobalVariables);
+            }
+        }
+        for(Function function : component) {
+            function.recursiveReadGlobalVariables = new HashSet<>(read);
+            function.recursiveWrittenGlobalVariables = new HashSet<>(written);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+
+import java.util.*;
+
+import static Mstar.IR.RegisterSet.vrax;
+import static Mstar.IR.RegisterSet.vrdx;
+
+/*
+    dominator-based global value numbering on the SSA form.
+    every SSA register gets a value number from the expression computing it, the expressions
+    are hashed globally since the SSA names never change their values, but the register holding
+    a value (the leader) is only available in the subtree of the dominator tree where it is defined,
+    so the leaders live in a scoped table which is unwound when the walk leaves a block.
+    a definition chain whose value already has a leader becomes a single "mov v, leader".
+
+    the expressions are: constants, BinaryInst (commutative ones with sorted operands), UnaryInst,
+    Lea and loads, phis of the same block with the same arguments, and the results of the calls which
+    do not write (see FunctionEffectAnalyzer) with the values of their arguments.
+    a load, or a call which reads memory, also carries the memory version, which changes at every store
+    or writing call. a block starts with the version at the end of its idom if no block between them
+    writes memory, otherwise a new one.
+ */
+public class GlobalValueNumberOptimizer {
+    private static class Expression {
+        Object[] items;
+
+        Expression(Object... items) {
+            this.items = items;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(items);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Expression && Arrays.equals(items, ((Expression) obj).items);
+        }
+    }
+
+    private static final int REGION_LIMIT = 64;
+
+    private IRProgram irProgram;
+
+    //  for process function
+    private Function function;
+    private HashMap<VirtualRegister, LinkedList<IRInstruction>> chains;
+    private HashMap<IRInstruction, VirtualRegister> chainEnds;
+    private HashMap<Expression, Integer> expressionValues;
+    private HashMap<Integer, Integer> constantOfValue;
+    private HashMap<VirtualRegister, Integer> registerValues;
+    private HashMap<Integer, VirtualRegister> leaders;
+    private HashMap<IRInstruction, Integer> memoryVersionAt;
+    private HashMap<BasicBlock, Integer> memoryVersionAtEnd;
+    private HashSet<BasicBlock> writeBlocks;
+    private int valueCount;
+    private int memoryVersionCount;
+
+    public GlobalValueNumberOptimizer(IRProgram irProgram) {
+        this.irProgram = irProgram;
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    private int newValue() {
+        return valueCount++;
+    }
+
+    private int getExpressionValue(Expression expression) {
+        Integer value = expressionValues.get(expression);
+        if(value == null) {
+            value = newValue();
+            expressionValues.put(expression, value);
+        }
+        return value;
+    }
+
+    private int getConstantValue(int constant) {
+        int value = getExpressionValue(new Expression("imm", constant));
+        constantOfValue.put(value, constant);
+        return value;
+    }
+
+    private int getRegisterValue(VirtualRegister vr) {
+        //  registers used before their definitions are seen (phi arguments on back edges) are unique
+        return registerValues.computeIfAbsent(vr, k -> newValue());
+    }
+
+    private Object getConstantKey(Constant constant) {
+        if(constant == null)
+            return null;
+        if(constant instanceof Immediate)
+            return ((Immediate) constant).value;
+        if(constant instanceof FunctionAddress)
+            return ((FunctionAddress) constant).function;
+        return constant;
+    }
+
+    public static boolean isMemoryWrite(IRInstruction inst) {
+        if(inst instanceof Call)
+            return ((Call) inst).func.effect == Function.Effect.Writing;
+        if(inst instanceof Move)
+            return ((Move) inst).dest instanceof Memory;
+        if(inst instanceof BinaryInst)
+            return ((BinaryInst) inst).dest instanceof Memory;
+        if(inst instanceof UnaryInst)
+            return ((UnaryInst) inst).dest instanceof Memory;
+        if(inst instanceof Pop)
+            return ((Pop) inst).dest instanceof Memory;
+        return false;
+    }
+
+    //  the value number of a register operand in a Memory, null if it can not be numbered
+    private Object getAddressPart(Register reg, IRInstruction at) {
+        if(reg == null)
+            return "none";
+        return getValue(reg, at);
+    }
+
+    private Integer getMemoryValue(Memory memory, IRInstruction at, String kind, int version) {
+        if(memory instanceof StackSlot)
+            return getExpressionValue(new Expression(kind, memory, version));
+        Object base = getAddressPart(memory.base, at);
+        Object index = getAddressPart(memory.index, at);
+        if(base == null || index == null)
+            return null;
+        return getExpressionValue(new Expression(kind, base, index, memory.scale, getConstantKey(memory.constant), version));
+    }
+
+    //  the value number of operand read by at, null if it can not be numbered
+    private Integer getValue(Operand operand, IRInstruction at) {
+        if(operand instanceof Immediate)
+            return getConstantValue(((Immediate) operand).value);
+        if(operand instanceof Constant)
+            return getExpressionValue(new Expression("const", getConstantKey((Constant) operand)));
+        if(SSAConstructor.isRenamable(operand))
+            return getRegisterValue((VirtualRegister) operand);
+        if(operand instanceof VirtualRegister && ((VirtualRegister) operand).allocatedPhysicalRegister != null)
+            return getPrecoloredValue((VirtualRegister) operand, at);
+        if(operand instanceof Memory)
+            return getMemoryValue((Memory) operand, at, "load", memoryVersionAt.get(at));
+        return null;
+    }
+
+    //  the value of a precolored register right before at, from the last definition in the same block
+    private Integer getPrecoloredValue(VirtualRegister reg, IRInstruction at) {
+        for(IRInstruction inst = at.prev; inst != null; inst = inst.prev) {
+            if(!inst.getDefRegs().contains(reg))
+                continue;
+            if(inst instanceof Move && ((Move) inst).dest == reg)
+                return getValue(((Move) inst).src, inst);
+            if(inst instanceof BinaryInst && ((BinaryInst) inst).dest == null) {
+                BinaryInst.BinaryOp op = ((BinaryInst) inst).op;
+                if((op == BinaryInst.BinaryOp.MUL && reg == vrax) || (op == BinaryInst.BinaryOp.DIV && reg == vrax)
+                        || (op == BinaryInst.BinaryOp.MOD && reg == vrdx))
+                    return getBinaryValue(op, getPrecoloredValue(vrax, inst), getValue(((BinaryInst) inst).src, inst));
+            }
+            if(inst instanceof Call && reg == vrax)
+                return getCallValue((Call) inst);
+            return null;
+        }
+        return null;
+    }
+
+    //  the value returned by a call, null if the call may write or an argument can not be numbered
+    private Integer getCallValue(Call call) {
+        Function func = call.func;
+        if(func.effect == Function.Effect.Writing || !func.hasReturnValue)
+            return null;
+        ArrayList<Object> items = new ArrayList<>();
+        items.add("call");
+        items.add(func);
+        for(Operand arg : call.args) {
+            Integer value = getValue(arg, call);
+            if(value == null)
+                return null;
+            items.add(value);
+        }
+        items.add(func.effect == Function.Effect.ReadOnly ? memoryVersionAt.get(call) : -1);
+        return getExpressionValue(new Expression(items.toArray()));
+    }
+
+    private boolean isCommutative(BinaryInst.BinaryOp op) {
+        switch(op) {
+            case ADD: case MUL: case AND: case OR: case XOR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private Integer getBinaryValue(BinaryInst.BinaryOp op, Integer lhs, Integer rhs) {
+        if(lhs == null || rhs == null)
+            return null;
+        if(isCommutative(op) && lhs > rhs) {
+            Integer temp = lhs;
+            lhs = rhs;
+            rhs = temp;
+        }
+        return getExpressionValue(new Expression(op, lhs, rhs));
+    }
+
+    private Integer getChainValue(VirtualRegister vr) {
+        Integer value = null;
+        for(IRInstruction inst : chains.get(vr)) {
+            if(inst instanceof Move)
+                value = getValue(((Move) inst).src, inst);
+            else if(inst instanceof Lea)
+                value = getMemoryValue(((Lea) inst).src, inst, "lea", 0);
+            else if(inst instanceof BinaryInst)
+                value = getBinaryValue(((BinaryInst) inst).op, value, getValue(((BinaryInst) inst).src, inst));
+            else if(inst instanceof UnaryInst)
+                value = value == null ? null : getExpressionValue(new Expression(((UnaryInst) inst).op, value));
+            else
+                value = null;
+            if(value == null)
+                return null;
+        }
+        return value;
+    }
+
+    private Operand getLeaderOperand(int value) {
+        if(constantOfValue.containsKey(value))
+            return new Immediate(constantOfValue.get(value));
+        return leaders.get(value);
+    }
+
+    private boolean isSameOperand(Operand a, Operand b) {
+        if(a instanceof Immediate && b instanceof Immediate)
+            return ((Immediate) a).value == ((Immediate) b).value;
+        return a == b;
+    }
+
+    private void replaceChain(VirtualRegister vr, Operand leader) {
+        LinkedList<IRInstruction> chain = chains.get(vr);
+        IRInstruction first = chain.getFirst();
+        if(chain.size() == 1 && first instanceof Move && isSameOperand(((Move) first).src, leader))
+            return;
+        first.prepend(new Move(first.bb, vr, leader));
+        for(IRInstruction inst : chain)
+            inst.remove();
+    }
+
+    //  the value of a phi, or null if it is new and dest becomes the leader
+    private Operand numberPhi(Phi phi, LinkedList<Integer> defined) {
+        ArrayList<Object> items = new ArrayList<>();
+        items.add(phi.bb);
+        HashSet<Integer> argumentValues = new HashSet<>();
+        for(BasicBlock pred : new LinkedHashSet<>(phi.bb.frontiers)) {
+            Integer value = getValue(phi.paths.get(pred), phi);
+            argumentValues.add(value);
+            items.add(value);
+        }
+        int value;
+        if(argumentValues.size() == 1 && !argumentValues.contains(null))
+            value = argumentValues.iterator().next();
+        else if(argumentValues.contains(null))
+            value = newValue();
+        else
+            value = getExpressionValue(new Expression(items.toArray()));
+        registerValues.put(phi.dest, value);
+        Operand leader = getLeaderOperand(value);
+        if(leader == null) {
+            leaders.put(value, phi.dest);
+            defined.add(value);
+        }
+        return leader;
+    }
+
+    private int getMemoryVersionAtEntry(BasicBlock bb) {
+        if(bb.idom == null)
+            return memoryVersionCount++;
+        //  the blocks on the paths from idom to bb, found backwards from bb
+        HashSet<BasicBlock> visited = new HashSet<>();
+        LinkedList<BasicBlock> worklist = new LinkedList<>();
+        for(BasicBlock pred : bb.frontiers) {
+            if(pred != bb.idom && visited.add(pred))
+                worklist.add(pred);
+        }
+        while(!worklist.isEmpty()) {
+            BasicBlock now = worklist.poll();
+            if(writeBlocks.contains(now) || visited.size() > REGION_LIMIT || now == bb)
+                return memoryVersionCount++;
+            for(BasicBlock pred : now.frontiers) {
+                if(pred != bb.idom && visited.add(pred))
+                    worklist.add(pred);
+            }
+        }
+        return memoryVersionAtEnd.get(bb.idom);
+    }
+
+    //  number the values in bb, return the values whose leaders are defined here
+    private LinkedList<Integer> processBasicBlock(BasicBlock bb) {
+        LinkedList<Integer> defined = new LinkedList<>();
+        int memoryVersion = getMemoryVersionAtEntry(bb);
+        LinkedList<Phi> redundantPhis = new LinkedList<>();
+        HashMap<Phi, Operand> phiLeaders = new HashMap<>();
+        IRInstruction inst = bb.head;
+        for(; inst instanceof Phi; inst = inst.next) {
+            Operand leader = numberPhi((Phi) inst, defined);
+            if(leader != null) {
+                redundantPhis.add((Phi) inst);
+                phiLeaders.put((Phi) inst, leader);
+            }
+        }
+        IRInstruction firstInst = inst;
+        for(; inst != null; inst = inst.next) {
+            memoryVersionAt.put(inst, memoryVersion);
+            if(isMemoryWrite(inst))
+                memoryVersion = memoryVersionCount++;
+            VirtualRegister vr = chainEnds.get(inst);
+            if(vr == null)
+                continue;
+            Integer value = getChainValue(vr);
+            if(value == null)
+                value = newValue();
+            registerValues.put(vr, value);
+            Operand leader = getLeaderOperand(value);
+            if(leader == null) {
+                leaders.put(value, vr);
+                defined.add(value);
+            } else if(leader != vr) {
+                IRInstruction next = inst.next;
+                replaceChain(vr, leader);
+                inst = next == null ? bb.tail : next.prev;
+            }
+        }
+        memoryVersionAtEnd.put(bb, memoryVersion);
+
+        for(Phi phi : redundantPhis) {
+            firstInst.prepend(new Move(bb, phi.dest, phiLeaders.get(phi)));
+            phi.remove();
+        }
+        return defined;
+    }
+
+    /*
+        walk the dominator tree without recursion, the leaders defined in a block
+        are removed after all the blocks it dominates are processed.
+     */
+    private void walkDominatorTree() {
+        LinkedList<Iterator<BasicBlock>> children = new LinkedList<>();
+        LinkedList<LinkedList<Integer>> definedStack = new LinkedList<>();
+        children.push(function.enterBB.dominatorTreeChildren.iterator());
+        definedStack.push(processBasicBlock(function.enterBB));
+        while(!children.isEmpty()) {
+            Iterator<BasicBlock> iterator = children.peek();
+            if(iterator.hasNext()) {
+                BasicBlock child = iterator.next();
+                children.push(child.dominatorTreeChildren.iterator());
+                definedStack.push(processBasicBlock(child));
+            } else {
+                children.pop();
+                for(int value : definedStack.pop())
+                    leaders.remove(value);
+            }
+        }
+    }
+
+    private void processFunction(Function function) {
+        this.function = function;
+        function.calcDominatorTree();
+        chains = SSAConstructor.getDefinitionChains(function);
+        chainEnds = new HashMap<>();
+        for(VirtualRegister vr : chains.keySet())
+            chainEnds.put(chains.get(vr).getLast(), vr);
+        writeBlocks = new HashSet<>();
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(isMemoryWrite(inst))
+                    writeBlocks.add(bb);
+            }
+        }
+        expressionValues = new HashMap<>();
+        constantOfValue = new HashMap<>();
+        registerValues = new HashMap<>();
+        leaders = new HashMap<>();
+        memoryVersionAt = new HashMap<>();
+        memoryVersionAtEnd = new HashMap<>();
+        valueCount = 0;
+        memoryVersionCount = 0;
+        walkDominatorTree();
+    }
+}
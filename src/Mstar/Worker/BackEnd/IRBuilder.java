@@ -41,6 +41,12 @@ public class IRBuilder implements IAstVisitor {
     private LinkedList<BasicBlock> inlineFuncAfterBBStack;
     private HashMap<FunctionSymbol,Integer> operationsCountMap;
 
+    //  for back optimization
+    private static final int MEMO_ENTRY_BYTES = 64;
+    private static final int MEMO_MAX_PARAMETERS = 3;
+    private StaticData memoTable;
+    private int memoizedFunctionCount;
+
 
     private static Function library_print;
     private static Function library_println;
@@ -51,9 +57,7 @@ public class IRBuilder implements IAstVisitor {
     private static Function library_string_substring;
     private static Function library_string_parseInt;
     private static Function library_string_ord;
-    private static Function library_hasValue;
-    private static Function library_getValue;
-    private static Function library_setValue;
+    private static Function library_memoInsert;
     private static Function library_stringConcate;
     private static Function library_stringCompare;
     private static Function external_malloc;
@@ -103,10 +107,12 @@ public class IRBuilder implements IAstVisitor {
 
         library_stringConcate = new Function(Function.Type.Library, "stringConcate", true);
         library_stringCompare = new Function(Function.Type.Library, "stringCompare", true);
-        library_hasValue = new Function(Function.Type.Library, "hasValue", true);
-        library_getValue = new Function(Function.Type.Library, "getValue", true);
-        library_setValue = new Function(Function.Type.Library, "setValue", true);
+        library_memoInsert = new Function(Function.Type.Library, "memoInsert", true);
 
+        //  the strings are never changed, so the functions on them are pure
+        for(Function function : Arrays.asList(library_toString, library_string_length, library_string_substring,
+                library_string_parseInt, library_string_ord, library_stringConcate, library_stringCompare))
+            function.effect = Function.Effect.Pure;
 
         library_init = new Function(Function.Type.Library, "init", true);
 
@@ -192,33 +198,142 @@ public class IRBuilder implements IAstVisitor {
         buildInitFunction(node);
     }
 
+    private boolean isIntOrBoolType(VariableType type) {
+        return isIntType(type) || isBoolType(type);
+    }
+
+    //  whether the function and the ones it calls touch no global variable and do no input or output,
+    //  with only int and bool parameters it can only read the memory it allocates itself
+    private boolean isPure(Function function, HashSet<Function> visited) {
+        if(!visited.add(function))
+            return true;
+        if(function.type != Function.Type.UserDefined)
+            return function != library_print && function != library_println
+                    && function != library_getString && function != library_getInt;
+        if(function.hasOutput || !function.usedGlobalVariables.isEmpty())
+            return false;
+        for(Function callee : function.callee) {
+            if(!isPure(callee, visited))
+                return false;
+        }
+        return true;
+    }
+
+    //  a function without a loop is too cheap to look up unless it calls user defined functions more than once,
+    //  a linear recursion never finds its arguments again
+    private boolean isExpensive(Function function) {
+        int calls = 0;
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(inst instanceof Call && ((Call) inst).func.type == Function.Type.UserDefined)
+                    calls++;
+            }
+        }
+        if(calls >= 2)
+            return true;
+        for(BasicBlock bb : function.reversePostOrder) {
+            for(BasicBlock succ : bb.successors) {
+                if(function.reversePostOrder.indexOf(succ) <= function.reversePostOrder.indexOf(bb))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasMemoizableSignature(FuncDeclaration funcDeclaration) {
+        if(!Config.useBackupOptimization || !funcDeclaration.symbol.isGlobalFunction
+                || !isIntOrBoolType(funcDeclaration.symbol.returnType)
+                || funcDeclaration.parameters.isEmpty() || funcDeclaration.parameters.size() > MEMO_MAX_PARAMETERS)
+            return false;
+        for(VariableDeclaration parameter : funcDeclaration.parameters) {
+            if(!isIntOrBoolType(parameter.symbol.type))
+                return false;
+        }
+        return funcDeclaration.symbol.usedGlobalVariables.isEmpty();
+    }
+
     private boolean deserveBackOptimization(FuncDeclaration funcDeclaration) {
         Function function = functionMap.get(funcDeclaration.symbol.name);
-        if(funcDeclaration.name.equals("func")) return false;   //  hack it!
-        return  Config.useBackupOptimization
-                && funcDeclaration.symbol.isGlobalFunction
-                && !function.hasOutput
-                && function.recursiveUsedGlobalVariables.isEmpty()
-                && function.parameters.size() == 1
-                && isIntType(funcDeclaration.parameters.get(0).symbol.type);
+        return hasMemoizableSignature(funcDeclaration) && isPure(function, new HashSet<>()) && isExpensive(function);
     }
 
+    /*
+        memorize the values of a pure function in the memo table shared by all the memorized functions.
+        an entry takes 64 bytes: tag (the id of the function), referenced, the arguments, value.
+        the arguments are hashed to a bucket of 2 entries (128 bytes, the table is aligned to it),
+        both are probed inline at the entry:
+        on a hit the referenced bit is set and the value is returned,
+        on a miss the function runs and the value is inserted by __memoInsert at the exit,
+        which evicts an entry of the bucket with the clock (second chance) policy.
+     */
     private void addValueBackOptimizeCode(FuncDeclaration funcDeclaration) {
-        if(!deserveBackOptimization(funcDeclaration)) return;
         Function function = functionMap.get(funcDeclaration.symbol.name);
+        if(memoTable == null) {
+            memoTable = new StaticData("memo", Config.memoizationCapacity * MEMO_ENTRY_BYTES);
+            irProgram.staticData.add(memoTable);
+        }
+        Immediate tag = new Immediate(++memoizedFunctionCount);
         BasicBlock bb = new BasicBlock(function, "backopt_entry");
-        BasicBlock hitBB = new BasicBlock(function, "backopt_hit");
-        VirtualRegister argu = new VirtualRegister("");
-        bb.append(new Push(bb, vrdi));
-        bb.append(new Move(bb, argu, vrdi));
-        bb.append(new Call(bb, vrax, library_hasValue, new FunctionAddress(function), argu));
-        bb.append(new Pop(bb, vrdi));
-        bb.append(new CJump(bb, vrax, CJump.CompareOp.NE, new Immediate(0), hitBB, function.enterBB));
-        hitBB.append(new Call(hitBB, vrax, library_getValue, new FunctionAddress(function), argu));
-        hitBB.append(new Jump(hitBB, function.leaveBB));
-        BasicBlock leaveBB = function.leaveBB;
-        leaveBB.prepend(new Call(leaveBB, vrax, library_setValue, new FunctionAddress(function), argu, vrax));
+        LinkedList<VirtualRegister> keys = new LinkedList<>();
+        for(int i = 0; i < function.parameters.size(); i++) {
+            VirtualRegister key = new VirtualRegister("");
+            bb.append(new Move(bb, key, vargs.get(i)));
+            keys.add(key);
+        }
+
+        /* hash = a0 * 31^(n-1) + ... + a(n-1) + salt of the tag, folded to a bucket */
+        VirtualRegister hash = new VirtualRegister("");
+        VirtualRegister temp = new VirtualRegister("");
+        bb.append(new Move(bb, hash, keys.getFirst()));
+        for(int i = 1; i < keys.size(); i++) {
+            bb.append(new Move(bb, temp, hash));
+            bb.append(new BinaryInst(bb, BinaryInst.BinaryOp.SAL, hash, new Immediate(5)));
+            bb.append(new BinaryInst(bb, BinaryInst.BinaryOp.SUB, hash, temp));
+            bb.append(new BinaryInst(bb, BinaryInst.BinaryOp.ADD, hash, keys.get(i)));
+        }
+        bb.append(new BinaryInst(bb, BinaryInst.BinaryOp.ADD, hash, new Immediate(tag.value * 40503)));
+        bb.append(new Move(bb, temp, hash));
+        bb.append(new BinaryInst(bb, BinaryInst.BinaryOp.SAR, temp, new Immediate(16)));
+        bb.append(new BinaryInst(bb, BinaryInst.BinaryOp.XOR, hash, temp));
+        bb.append(new BinaryInst(bb, BinaryInst.BinaryOp.AND, hash, new Immediate(Config.memoizationCapacity / 2 - 1)));
+        bb.append(new BinaryInst(bb, BinaryInst.BinaryOp.SAL, hash, new Immediate(7)));
+        VirtualRegister bucket = new VirtualRegister("");
+        bb.append(new Lea(bb, bucket, new Memory(memoTable)));
+        bb.append(new BinaryInst(bb, BinaryInst.BinaryOp.ADD, bucket, hash));
+
+        /* probe the 2 entries of the bucket */
+        BasicBlock leaveBB = new BasicBlock(function, "leaveBB");
+        BasicBlock probeBB = bb;
+        for(int way = 0; way < 2; way++) {
+            int offset = way * MEMO_ENTRY_BYTES;
+            BasicBlock missBB = way == 0 ? new BasicBlock(function, "backopt_probe") : function.enterBB;
+            BasicBlock hitBB = new BasicBlock(function, "backopt_hit");
+            for(int i = 0; i <= keys.size(); i++) {
+                VirtualRegister field = new VirtualRegister("");
+                probeBB.append(new Move(probeBB, field, new Memory(bucket, new Immediate(offset + (i == 0 ? 0 : 8 + 8 * i)))));
+                BasicBlock matchBB = i == keys.size() ? hitBB : new BasicBlock(function, "backopt_match");
+                probeBB.append(new CJump(probeBB, field, CJump.CompareOp.E, i == 0 ? tag : keys.get(i - 1), matchBB, missBB));
+                probeBB = matchBB;
+            }
+            hitBB.append(new Move(hitBB, new Memory(bucket, new Immediate(offset + 8)), new Immediate(1)));
+            hitBB.append(new Move(hitBB, vrax, new Memory(bucket, new Immediate(offset + 40))));
+            hitBB.append(new Jump(hitBB, leaveBB));
+            probeBB = missBB;
+        }
+
+        /* insert the value computed at the exit */
+        LinkedList<Operand> args = new LinkedList<>(Arrays.asList(bucket, tag, vrax));
+        args.addAll(keys);
+        while(args.size() < 3 + MEMO_MAX_PARAMETERS)
+            args.add(new Immediate(0));
+        IRInstruction retInst = function.leaveBB.tail;
+        retInst.prepend(new Call(retInst.bb, vrax, library_memoInsert, args));
+        retInst.prepend(new Jump(retInst.bb, leaveBB));
+        retInst.remove();
+        leaveBB.append(new Return(leaveBB));
+        function.leaveBB = leaveBB;
         function.enterBB = bb;
+        function.memoized = true;
         function.finishBuild();
     }
 
@@ -477,7 +592,8 @@ public class IRBuilder implements IAstVisitor {
     @Override
     public void visit(ReturnStatement node) {
         if(node.retExpression != null) {
-            if(isBoolType(node.retExpression.type)) {
+            //  a returned call already leaves 0 or 1 in rax, no branches keep it a tail call
+            if(isBoolType(node.retExpression.type) && !(node.retExpression instanceof FuncCallExpression)) {
                 boolAssign(node.retExpression, vrax);
             } else {
                 node.retExpression.accept(this);
@@ -599,6 +715,8 @@ public class IRBuilder implements IAstVisitor {
 
     @Override
     public void visit(FuncCallExpression node) {
+        //  an inlined recursion visits this node again, take the targets before they are overwritten
+        BasicBlock trueBB = trueBBMap.get(node), falseBB = falseBBMap.get(node);
         LinkedList<Operand> arguments = new LinkedList<>();
         if(!node.functionSymbol.isGlobalFunction)
             arguments.add(curThisPointer);
@@ -612,8 +730,8 @@ public class IRBuilder implements IAstVisitor {
         } else {
             curBB.append(new Call(curBB, vrax, functionMap.get(node.functionSymbol.name), arguments));
         }
-        if(trueBBMap.containsKey(node)) {
-            curBB.append(new CJump(curBB, vrax, CJump.CompareOp.NE, new Immediate(0), trueBBMap.get(node), falseBBMap.get(node)));
+        if(trueBB != null) {
+            curBB.append(new CJump(curBB, vrax, CJump.CompareOp.NE, new Immediate(0), trueBB, falseBB));
         } else {
             if(!isVoidType(node.functionSymbol.returnType)) {
                 VirtualRegister vr = new VirtualRegister("");
@@ -786,6 +904,62 @@ public class IRBuilder implements IAstVisitor {
         return count;
     }
 
+    //  the calls of user defined functions in the body, a loop counts as 2 (see isExpensive)
+    private int countCallsAndLoops(Expression expression) {
+        if(expression == null) return 0;
+        int count = 0;
+        if (expression instanceof ArrayExpression) {
+            count += countCallsAndLoops(((ArrayExpression) expression).address);
+            count += countCallsAndLoops(((ArrayExpression) expression).index);
+        } else if (expression instanceof FuncCallExpression) {
+            for(Expression argument : ((FuncCallExpression) expression).arguments)
+                count += countCallsAndLoops(argument);
+            if(funcDeclarationMap.containsKey(((FuncCallExpression) expression).functionSymbol.name))
+                count += 1;
+        } else if (expression instanceof NewExpression) {
+            for(Expression dimension : ((NewExpression) expression).exprDimensions)
+                count += countCallsAndLoops(dimension);
+        } else if (expression instanceof UnaryExpression) {
+            count += countCallsAndLoops(((UnaryExpression) expression).expression);
+        } else if (expression instanceof MemberExpression) {
+            count += countCallsAndLoops(((MemberExpression) expression).object);
+            count += countCallsAndLoops(((MemberExpression) expression).methodCall);
+        } else if (expression instanceof BinaryExpression) {
+            count += countCallsAndLoops(((BinaryExpression) expression).lhs);
+            count += countCallsAndLoops(((BinaryExpression) expression).rhs);
+        } else if (expression instanceof AssignExpression) {
+            count += countCallsAndLoops(((AssignExpression) expression).lhs);
+            count += countCallsAndLoops(((AssignExpression) expression).rhs);
+        } else if (expression instanceof TernaryExpression) {
+            count += countCallsAndLoops(((TernaryExpression) expression).condition);
+            count += countCallsAndLoops(((TernaryExpression) expression).exprTrue);
+            count += countCallsAndLoops(((TernaryExpression) expression).exprFalse);
+        }
+        return count;
+    }
+
+    private int countCallsAndLoops(Statement statement) {
+        if(statement == null) return 0;
+        int count = 0;
+        if(statement instanceof IfStatement) {
+            count += countCallsAndLoops(((IfStatement) statement).condition);
+            count += countCallsAndLoops(((IfStatement) statement).thenStatement);
+            count += countCallsAndLoops(((IfStatement) statement).elseStatement);
+        } else if(statement instanceof WhileStatement || statement instanceof ForStatement) {
+            count += 2;
+        } else if(statement instanceof BlockStatement) {
+            for(Statement s : ((BlockStatement) statement).statements)
+                count += countCallsAndLoops(s);
+        } else if(statement instanceof ReturnStatement) {
+            count += countCallsAndLoops(((ReturnStatement) statement).retExpression);
+        } else if(statement instanceof ExprStatement) {
+            count += countCallsAndLoops(((ExprStatement) statement).expression);
+        } else if(statement instanceof VarDeclStatement) {
+            count += countCallsAndLoops(((VarDeclStatement) statement).declaration.init);
+        }
+        return count;
+    }
+
     private boolean deserveInline(String name) {
         if(!Config.useInlineOptimization) return false;
         if(!funcDeclarationMap.containsKey(name))   //  library function
@@ -801,6 +975,14 @@ public class IRBuilder implements IAstVisitor {
         if(operationsCountMap.get(funcDeclaration.symbol) >= Config.inlineOperationsThreshold) return false;
         if(inlineVariableRegisterStack.size() >= Config.inlineMaxDepth)
             return false;
+        //  the recursive calls of a function which may be memorized should look up the memo table
+        if(functionMap.get(name) == curFunction && hasMemoizableSignature(funcDeclaration)) {
+            int count = 0;
+            for(Statement statement : body)
+                count += countCallsAndLoops(statement);
+            if(count >= 2)
+                return false;
+        }
         return true;
     }
     private void doInline(String name, LinkedList<Operand> arguments) {
@@ -840,6 +1022,7 @@ public class IRBuilder implements IAstVisitor {
 
     @Override
     public void visit(MemberExpression node) {
+        BasicBlock trueBB = trueBBMap.get(node), falseBB = falseBBMap.get(node);
         VirtualRegister baseAddr = new VirtualRegister("");
         node.object.accept(this);
         curBB.append(new Move(curBB, baseAddr, exprResultMap.get(node.object)));
@@ -875,8 +1058,8 @@ public class IRBuilder implements IAstVisitor {
                     operand = null;
                 }
             }
-            if(trueBBMap.containsKey(node)) {
-                curBB.append(new CJump(curBB, operand, CJump.CompareOp.NE, new Immediate(0), trueBBMap.get(node), falseBBMap.get(node)));
+            if(trueBB != null) {
+                curBB.append(new CJump(curBB, operand, CJump.CompareOp.NE, new Immediate(0), trueBB, falseBB));
             } else {
                 exprResultMap.put(node, operand);
             }
@@ -159,8 +159,16 @@ public class IRCorrector implements IIRVisitor {
         Function callee = inst.func;
         HashSet<VariableSymbol> callerUsed = caller.usedGlobalVariables;
         HashSet<VariableSymbol> calleeUsed = callee.recursiveUsedGlobalVariables;
+        //  with the mod / ref summaries, store only what the caller may have changed and the callee reads,
+        //  and reload only what the callee writes
+        HashSet<VariableSymbol> storedBefore = calleeUsed, loadedAfter = calleeUsed;
+        if(Config.useGlobalModRefAnalysis) {
+            storedBefore = new HashSet<>(callee.recursiveReadGlobalVariables);
+            storedBefore.retainAll(caller.writtenGlobalVariables);
+            loadedAfter = callee.recursiveWrittenGlobalVariables;
+        }
         for(VariableSymbol vs : callerUsed) {
-            if(calleeUsed.contains(vs)) {
+            if(storedBefore.contains(vs)) {
                 inst.prepend(new Move(inst.bb, vs.virtualRegister.spillPlace, vs.virtualRegister));
                 inst.prev.accept(this);
             }
@@ -172,7 +180,7 @@ public class IRCorrector implements IIRVisitor {
             inst.prev.accept(this);
         }
         for(VariableSymbol vs : callerUsed) {
-            if(calleeUsed.contains(vs)) {
+            if(loadedAfter.contains(vs)) {
                 inst.append(new Move(inst.bb, vs.virtualRegister, vs.virtualRegister.spillPlace));
             }
         }
@@ -186,6 +194,10 @@ public class IRCorrector implements IIRVisitor {
     public void visit(Cdq inst) {
     }
 
+    @Override
+    public void visit(Phi inst) {
+    }
+
     @Override
     public void visit(FunctionAddress operand) {
     }
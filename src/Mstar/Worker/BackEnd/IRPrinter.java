@@ -1,5 +1,6 @@
 package Mstar.Worker.BackEnd;
 
+import Mstar.Config;
 import Mstar.IR.BasicBlock;
 import Mstar.IR.Function;
 import Mstar.IR.IIRVisitor;
@@ -99,6 +100,8 @@ public class IRPrinter implements IIRVisitor {
         if(showNasm) {
             append("\tsection .data\n");
             for(StaticData staticData : program.staticData) {
+                if(isBuffer(staticData))
+                    continue;
                 append(getStaticDataName(staticData) + ":\n");
                 if(staticData.init != null) {
                     append("\tdq " + String.valueOf(staticData.init.length()) + "\n");
@@ -119,6 +122,18 @@ public class IRPrinter implements IIRVisitor {
                     append("\n");
                 }
             }
+            //  the buffers (the memo table) are left uninitialized, aligned to a bucket of 2 cache lines
+            boolean hasBuffer = false;
+            for(StaticData staticData : program.staticData) {
+                if(!isBuffer(staticData))
+                    continue;
+                if(!hasBuffer)
+                    append("\tsection .bss\n");
+                hasBuffer = true;
+                append("\talignb 128\n");
+                append(getStaticDataName(staticData) + ":\n");
+                append("\tresb " + String.valueOf(staticData.bytes) + "\n");
+            }
         } else {
             for (StaticData staticData : program.staticData) {
                 append(getStaticDataName(staticData) + ": " + String.valueOf(staticData.bytes) + " bytes");
@@ -129,6 +144,10 @@ public class IRPrinter implements IIRVisitor {
         }
     }
 
+    private boolean isBuffer(StaticData staticData) {
+        return staticData.init == null && staticData.bytes > Config.REGISTER_WIDTH;
+    }
+
     private String getNasmFunctionName(Function function) {
         switch(function.type) {
             case Library:
@@ -159,7 +178,7 @@ public class IRPrinter implements IIRVisitor {
             }
             append(") {\n");
         }
-        ArrayList<BasicBlock> reversePostOrder = new ArrayList<>(function.reversePostOrder);
+        ArrayList<BasicBlock> reversePostOrder = new ArrayList<>(function.layout != null ? function.layout : function.reversePostOrder);
         for(int i = 0; i < reversePostOrder.size(); i++) {
             BasicBlock bb = reversePostOrder.get(i);
             nextBasicBlock = (i + 1 == reversePostOrder.size()) ? null : reversePostOrder.get(i+1);
@@ -171,6 +190,8 @@ public class IRPrinter implements IIRVisitor {
 
     @Override
     public void visit(BasicBlock basicBlock) {
+        if(showNasm && basicBlock.function.alignedBasicBlocks.contains(basicBlock))
+            append("\talign 16\n");
         append("\t" + getBasicBlockName(basicBlock) + (showBlockHint && !showNasm ? "(" + basicBlock.hint + ")" : "") + ":\n");
         for(IRInstruction inst = basicBlock.head; inst != null; inst = inst.next)
             inst.accept(this);
@@ -282,7 +303,7 @@ public class IRPrinter implements IIRVisitor {
             case SUB: op = "sub"; break;
             case XOR: op = "xor"; break;
         }
-        if(inst.op == BinaryInst.BinaryOp.SAL || inst.op == BinaryInst.BinaryOp.SAR) {
+        if((inst.op == BinaryInst.BinaryOp.SAL || inst.op == BinaryInst.BinaryOp.SAR) && !(inst.src instanceof Immediate)) {
             append("\t" + op + " ");
             inst.dest.accept(this);
             append(", cl\n");
@@ -382,6 +403,10 @@ public class IRPrinter implements IIRVisitor {
 
     @Override
     public void visit(Return inst) {
+        if(inst.tailCall != null) {
+            append("\tjmp " + (showNasm ? getNasmFunctionName(inst.tailCall.func) : inst.tailCall.func.name) + "\n");
+            return;
+        }
         append("\tret ");
         append("\n");
     }
@@ -419,6 +444,19 @@ public class IRPrinter implements IIRVisitor {
         append("\tcdq\n");
     }
 
+    @Override
+    public void visit(Phi inst) {
+        append("\tphi ");
+        inst.dest.accept(this);
+        for(BasicBlock pred : inst.bb.frontiers) {
+            if(!inst.paths.containsKey(pred))
+                continue;
+            append(", " + getBasicBlockName(pred) + ": ");
+            inst.paths.get(pred).accept(this);
+        }
+        append("\n");
+    }
+
     @Override
     public void visit(FunctionAddress operand) {
         append(getNasmFunctionName(operand.function));
@@ -0,0 +1,475 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+
+import java.util.*;
+
+import static Mstar.IR.RegisterSet.vrax;
+import static Mstar.IR.RegisterSet.vrdx;
+
+/*
+    strength reduction of the induction variables on the SSA form.
+    a basic induction variable is a phi of the loop header
+        i = phi(preheader: init, latch: i')     i' = i + step  (add/sub an immediate, inc, dec)
+    a derived one is a linear function of it, which gets its own phi and is updated next to i':
+        i * c       (the group "mov vrax, i; imul c; mov d, vrax", c invariant)
+                    ->  t = phi(preheader: init * c, latch: t + step * c), d = t
+        [b + i * s + k]     (b invariant)
+                    ->  p = phi(preheader: b + init * s, latch: p + step * s), [p + k]
+
+    an address like [b + i * 8 + 8] costs nothing more than [p + 8] on x86, so the pointer only
+    replaces i when i is left with nothing else to do (linear function test replacement):
+    all its uses are the addresses with the same b and s and the compare of the header against
+    an invariant bound n, which becomes a compare of p against b + n * s. then i and i' are removed.
+ */
+public class InductionVariableOptimizer {
+    private static class InductionVariable {
+        Phi phi;
+        VirtualRegister value;
+        VirtualRegister next;
+        Operand init;
+        int step;
+        IRInstruction updateEnd;
+    }
+
+    private IRProgram irProgram;
+    private LoopAnalyzer loopAnalyzer;
+    private LivenessAnalyzer livenessAnalyzer;
+
+    //  for process function
+    private Function function;
+    private HashMap<VirtualRegister, LinkedList<IRInstruction>> chains;
+    private HashMap<VirtualRegister, BasicBlock> defBlock;
+    private HashMap<Register, LinkedList<IRInstruction>> users;
+
+    //  for process loop
+    private BasicBlock header;
+    private HashSet<BasicBlock> body;
+    private BasicBlock preheader;
+    private BasicBlock latch;
+    private boolean hasCall;
+    private HashSet<Register> assignedInLoop;
+    private boolean isMultiplyAvailable;
+
+    public InductionVariableOptimizer(IRProgram irProgram) {
+        this.irProgram = irProgram;
+        this.loopAnalyzer = new LoopAnalyzer();
+        this.livenessAnalyzer = new LivenessAnalyzer();
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    private void collectDefinitions() {
+        chains = SSAConstructor.getDefinitionChains(function);
+        defBlock = new HashMap<>();
+        users = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                for(VirtualRegister vr : SSAConstructor.getDefs(inst))
+                    defBlock.put(vr, bb);
+                for(VirtualRegister vr : SSAConstructor.getUses(inst))
+                    users.computeIfAbsent(vr, k -> new LinkedList<>()).add(inst);
+            }
+        }
+    }
+
+    private LinkedList<IRInstruction> getUsers(Register reg) {
+        return users.getOrDefault(reg, new LinkedList<>());
+    }
+
+    //  the src of reg if reg is defined by a plain copy of another virtual register, otherwise null
+    private Register getCopySource(Register reg) {
+        LinkedList<IRInstruction> chain = chains.get(reg);
+        if(chain == null || chain.size() != 1 || !(chain.getFirst() instanceof Move))
+            return null;
+        Operand src = ((Move) chain.getFirst()).src;
+        if(src instanceof VirtualRegister && ((VirtualRegister) src).allocatedPhysicalRegister == null)
+            return (Register) src;
+        return null;
+    }
+
+    //  the operand to use in the preheader for an invariant operand, null if it is not invariant
+    private Operand getInvariant(Operand operand) {
+        if(operand instanceof Constant)
+            return operand;
+        if(!(operand instanceof VirtualRegister) || ((VirtualRegister) operand).allocatedPhysicalRegister != null)
+            return null;
+        for(Register reg = (Register) operand; reg != null; reg = getCopySource(reg)) {
+            if(!SSAConstructor.isRenamable(reg))
+                return !hasCall && !assignedInLoop.contains(reg) ? reg : null;
+            BasicBlock bb = defBlock.get(reg);
+            if(bb != null && !body.contains(bb))
+                return reg;
+        }
+        return null;
+    }
+
+    private boolean isCopy(IRInstruction inst) {
+        return inst instanceof Move && SSAConstructor.isRenamable(((Move) inst).dest)
+                && chains.get(((Move) inst).dest).size() == 1 && SSAConstructor.isRenamable(((Move) inst).src);
+    }
+
+    private InductionVariable getInductionVariable(Phi phi) {
+        if(phi.paths.size() != 2 || !phi.paths.containsKey(preheader) || !phi.paths.containsKey(latch))
+            return null;
+        Operand next = phi.paths.get(latch);
+        if(!SSAConstructor.isRenamable(next) || !chains.containsKey(next))
+            return null;
+        LinkedList<IRInstruction> chain = chains.get(next);
+        if(!body.contains(chain.getFirst().bb) || !(chain.getFirst() instanceof Move) || ((Move) chain.getFirst()).src != phi.dest)
+            return null;
+        long step = 0;
+        for(IRInstruction inst : chain) {
+            if(inst == chain.getFirst())
+                continue;
+            if(inst instanceof UnaryInst && ((UnaryInst) inst).op == UnaryInst.UnaryOp.INC)
+                step++;
+            else if(inst instanceof UnaryInst && ((UnaryInst) inst).op == UnaryInst.UnaryOp.DEC)
+                step--;
+            else if(inst instanceof BinaryInst && ((BinaryInst) inst).src instanceof Immediate
+                    && ((BinaryInst) inst).op == BinaryInst.BinaryOp.ADD)
+                step += ((Immediate) ((BinaryInst) inst).src).value;
+            else if(inst instanceof BinaryInst && ((BinaryInst) inst).src instanceof Immediate
+                    && ((BinaryInst) inst).op == BinaryInst.BinaryOp.SUB)
+                step -= ((Immediate) ((BinaryInst) inst).src).value;
+            else
+                return null;
+        }
+        if(step == 0 || step != (int) step)
+            return null;
+        InductionVariable iv = new InductionVariable();
+        iv.phi = phi;
+        iv.value = phi.dest;
+        iv.next = (VirtualRegister) next;
+        iv.init = phi.paths.get(preheader);
+        iv.step = (int) step;
+        iv.updateEnd = chain.getLast();
+        return iv;
+    }
+
+    private LinkedList<InductionVariable> findInductionVariables() {
+        LinkedList<InductionVariable> ivs = new LinkedList<>();
+        for(IRInstruction inst = header.head; inst instanceof Phi; inst = inst.next) {
+            InductionVariable iv = getInductionVariable((Phi) inst);
+            if(iv != null)
+                ivs.add(iv);
+        }
+        return ivs;
+    }
+
+    //  the register the copies ending with reg start from, reg itself if it is not a copy
+    private Register getCopyRoot(Register reg) {
+        while(getCopySource(reg) != null && SSAConstructor.isRenamable(getCopySource(reg)))
+            reg = getCopySource(reg);
+        return reg;
+    }
+
+    //  a * b computed at the end of the preheader, null if it can not be computed there
+    private Operand multiplyInPreheader(Operand a, Operand b) {
+        if(a instanceof Immediate && b instanceof Immediate) {
+            long product = (long) ((Immediate) a).value * ((Immediate) b).value;
+            return product == (int) product ? new Immediate((int) product) : null;
+        }
+        if(b instanceof Immediate) {
+            Operand temp = a;
+            a = b;
+            b = temp;
+        }
+        if(a instanceof Immediate && ((Immediate) a).value == 0)
+            return new Immediate(0);
+        if(a instanceof Immediate && ((Immediate) a).value == 1)
+            return b;
+        if(!isMultiplyAvailable)
+            return null;
+        VirtualRegister product = new VirtualRegister("");
+        preheader.tail.prepend(new Move(preheader, vrax, b));
+        preheader.tail.prepend(new BinaryInst(preheader, BinaryInst.BinaryOp.MUL, null, a));
+        preheader.tail.prepend(new Move(preheader, product, vrax));
+        return product;
+    }
+
+    //  a new induction variable start, start + increment, ... updated right after iv
+    private VirtualRegister[] addInductionVariable(InductionVariable iv, Operand start, Operand increment, String hint) {
+        VirtualRegister value = new VirtualRegister(hint);
+        VirtualRegister next = new VirtualRegister(hint);
+        Phi phi = new Phi(header, value);
+        phi.paths.put(preheader, start);
+        phi.paths.put(latch, next);
+        header.head.prepend(phi);
+        iv.updateEnd.append(new BinaryInst(iv.updateEnd.bb, BinaryInst.BinaryOp.ADD, next, increment));
+        iv.updateEnd.append(new Move(iv.updateEnd.bb, next, value));
+        return new VirtualRegister[]{value, next};
+    }
+
+    /*
+        replace "mov vrax, x; imul y; mov d, vrax" where one of x and y is iv (or i')
+        and the other is invariant by a copy of a new induction variable
+     */
+    private void reduceMultiplications(InductionVariable iv) {
+        HashMap<Object, VirtualRegister[]> reduced = new HashMap<>();
+        for(BasicBlock bb : function.reversePostOrder) {
+            if(!body.contains(bb))
+                continue;
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(!(inst instanceof Move) || ((Move) inst).src != vrax || !SSAConstructor.isRenamable(((Move) inst).dest))
+                    continue;
+                if(!(inst.prev instanceof BinaryInst) || !(inst.prev.prev instanceof Move))
+                    continue;
+                BinaryInst multiply = (BinaryInst) inst.prev;
+                Move load = (Move) inst.prev.prev;
+                if(multiply.op != BinaryInst.BinaryOp.MUL || multiply.dest != null || load.dest != vrax)
+                    continue;
+                Operand factor;
+                Register counter;
+                if(load.src instanceof Register && isInductionValue(iv, (Register) load.src)) {
+                    counter = getCopyRoot((Register) load.src);
+                    factor = getInvariant(multiply.src);
+                } else if(multiply.src instanceof Register && isInductionValue(iv, (Register) multiply.src)) {
+                    counter = getCopyRoot((Register) multiply.src);
+                    factor = getInvariant(load.src);
+                } else {
+                    continue;
+                }
+                if(factor == null)
+                    continue;
+                Object key = factor instanceof Immediate ? (Object) ((Immediate) factor).value : factor;
+                VirtualRegister[] derived = reduced.get(key);
+                if(derived == null) {
+                    Operand start = multiplyInPreheader(iv.init, factor);
+                    Operand increment = start == null ? null : multiplyInPreheader(new Immediate(iv.step), factor);
+                    if(increment == null)
+                        continue;
+                    derived = addInductionVariable(iv, start, increment, "");
+                    reduced.put(key, derived);
+                }
+                load.remove();
+                multiply.remove();
+                ((Move) inst).src = counter == iv.value ? derived[0] : derived[1];
+            }
+        }
+    }
+
+    private boolean isInductionValue(InductionVariable iv, Register reg) {
+        Register root = getCopyRoot(reg);
+        return root == iv.value || root == iv.next;
+    }
+
+    //  the operands of inst, null if inst is not one of the instructions handled here
+    private LinkedList<Operand> getOperands(IRInstruction inst) {
+        LinkedList<Operand> operands = new LinkedList<>();
+        if(inst instanceof Move) {
+            operands.add(((Move) inst).dest);
+            operands.add(((Move) inst).src);
+        } else if(inst instanceof BinaryInst) {
+            operands.add(((BinaryInst) inst).dest);
+            operands.add(((BinaryInst) inst).src);
+        } else if(inst instanceof UnaryInst) {
+            operands.add(((UnaryInst) inst).dest);
+        } else if(inst instanceof CJump) {
+            operands.add(((CJump) inst).src1);
+            operands.add(((CJump) inst).src2);
+        } else if(inst instanceof Push) {
+            operands.add(((Push) inst).src);
+        } else if(inst instanceof Call) {
+            operands.addAll(((Call) inst).args);
+        } else {
+            return null;
+        }
+        return operands;
+    }
+
+    private Operand replaceMemory(Operand operand, HashMap<Memory, Memory> replaced) {
+        return operand instanceof Memory && replaced.containsKey(operand) ? replaced.get(operand) : operand;
+    }
+
+    private void replaceMemories(IRInstruction inst, HashMap<Memory, Memory> replaced) {
+        if(inst instanceof Move) {
+            ((Move) inst).dest = (Address) replaceMemory(((Move) inst).dest, replaced);
+            ((Move) inst).src = replaceMemory(((Move) inst).src, replaced);
+        } else if(inst instanceof BinaryInst) {
+            ((BinaryInst) inst).dest = (Address) replaceMemory(((BinaryInst) inst).dest, replaced);
+            ((BinaryInst) inst).src = replaceMemory(((BinaryInst) inst).src, replaced);
+        } else if(inst instanceof UnaryInst) {
+            ((UnaryInst) inst).dest = (Address) replaceMemory(((UnaryInst) inst).dest, replaced);
+        } else if(inst instanceof CJump) {
+            ((CJump) inst).src1 = replaceMemory(((CJump) inst).src1, replaced);
+            ((CJump) inst).src2 = replaceMemory(((CJump) inst).src2, replaced);
+        } else if(inst instanceof Push) {
+            ((Push) inst).src = replaceMemory(((Push) inst).src, replaced);
+        } else if(inst instanceof Call) {
+            LinkedList<Operand> args = ((Call) inst).args;
+            for(int i = 0; i < args.size(); i++)
+                args.set(i, replaceMemory(args.get(i), replaced));
+        }
+    }
+
+    private boolean fitsAddress(Operand a, int scale) {
+        if(a instanceof Immediate) {
+            long offset = (long) ((Immediate) a).value * scale;
+            return offset == (int) offset;
+        }
+        return a instanceof Register;
+    }
+
+    //  base + a * scale as a Lea at the end of the preheader
+    private Register addressInPreheader(Register base, Operand a, int scale) {
+        if(a instanceof Immediate && ((Immediate) a).value == 0)
+            return base;
+        Memory address;
+        if(a instanceof Immediate)
+            address = new Memory(base, new Immediate(((Immediate) a).value * scale));
+        else
+            address = new Memory(base, (Register) a, scale);
+        VirtualRegister vr = new VirtualRegister("");
+        preheader.tail.prepend(new Lea(preheader, vr, address));
+        return vr;
+    }
+
+    /*
+        replace iv by a pointer when it is only used by the compare of the header
+        and as the index of addresses with the same base and scale
+     */
+    private void replaceByPointer(InductionVariable iv) {
+        if(!(header.tail instanceof CJump))
+            return;
+        CJump cJump = (CJump) header.tail;
+        boolean counterFirst = cJump.src1 == iv.value;
+        if(!counterFirst && cJump.src2 != iv.value)
+            return;
+        Operand bound = getInvariant(counterFirst ? cJump.src2 : cJump.src1);
+        if(bound == null || bound instanceof Memory)
+            return;
+        for(IRInstruction inst : getUsers(iv.next)) {
+            if(inst != iv.phi && !chains.get(iv.next).contains(inst))
+                return;
+        }
+
+        //  the copies of iv and the instructions reading them, except the update of iv and the compare
+        LinkedList<Register> copies = new LinkedList<>();
+        LinkedList<IRInstruction> accesses = new LinkedList<>();
+        copies.add(iv.value);
+        for(int i = 0; i < copies.size(); i++) {
+            for(IRInstruction inst : getUsers(copies.get(i))) {
+                if(i == 0 && (inst == chains.get(iv.next).getFirst() || inst == cJump))
+                    continue;
+                if(isCopy(inst))
+                    copies.add((Register) ((Move) inst).dest);
+                else if(!body.contains(inst.bb))
+                    return;
+                else if(!accesses.contains(inst))
+                    accesses.add(inst);
+            }
+        }
+        if(accesses.isEmpty() || copies.contains(bound))
+            return;
+
+        Register base = null;
+        int scale = 0;
+        for(IRInstruction inst : accesses) {
+            LinkedList<Operand> operands = getOperands(inst);
+            if(operands == null)
+                return;
+            for(Operand operand : operands) {
+                if(copies.contains(operand))
+                    return;
+                if(!(operand instanceof Memory) || !copies.contains(((Memory) operand).index))
+                    continue;
+                Memory memory = (Memory) operand;
+                Operand memoryBase = memory.base == null ? null : getInvariant(memory.base);
+                if(!(memoryBase instanceof Register) || (base != null && (base != memoryBase || scale != memory.scale)))
+                    return;
+                base = (Register) memoryBase;
+                scale = memory.scale;
+            }
+        }
+        long increment = (long) iv.step * scale;
+        if(base == null || increment != (int) increment || !fitsAddress(iv.init, scale) || !fitsAddress(bound, scale))
+            return;
+
+        Register start = addressInPreheader(base, iv.init, scale);
+        Register limit = addressInPreheader(base, bound, scale);
+        VirtualRegister pointer = addInductionVariable(iv, start, new Immediate((int) increment), "")[0];
+        for(IRInstruction inst : accesses) {
+            HashMap<Memory, Memory> replaced = new HashMap<>();
+            for(Operand operand : getOperands(inst)) {
+                if(operand instanceof Memory && copies.contains(((Memory) operand).index))
+                    replaced.put((Memory) operand, new Memory(pointer, ((Memory) operand).constant));
+            }
+            replaceMemories(inst, replaced);
+        }
+        if(counterFirst) {
+            cJump.src1 = pointer;
+            cJump.src2 = limit;
+        } else {
+            cJump.src1 = limit;
+            cJump.src2 = pointer;
+        }
+        iv.phi.remove();
+        for(IRInstruction inst : chains.get(iv.next))
+            inst.remove();
+        for(Register copy : copies) {
+            if(copy != iv.value)
+                chains.get(copy).getFirst().remove();
+        }
+    }
+
+    private void collectLoopInfo(BasicBlock loopHeader) {
+        header = loopHeader;
+        body = loopAnalyzer.loops.get(header);
+        preheader = loopAnalyzer.getPreheader(header);
+        latch = null;
+        for(BasicBlock pred : header.frontiers) {
+            if(!body.contains(pred))
+                continue;
+            if(latch != null && latch != pred) {
+                latch = null;
+                break;
+            }
+            latch = pred;
+        }
+        hasCall = false;
+        assignedInLoop = new HashSet<>();
+        for(BasicBlock bb : body) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                assignedInLoop.addAll(inst.getDefRegs());
+                if(inst instanceof Call)
+                    hasCall = true;
+            }
+        }
+        BitSet liveIn = livenessAnalyzer.liveIn.get(header);
+        isMultiplyAvailable = !liveIn.get(livenessAnalyzer.getIndex(vrax)) && !liveIn.get(livenessAnalyzer.getIndex(vrdx));
+    }
+
+    private void processLoop(BasicBlock loopHeader) {
+        collectLoopInfo(loopHeader);
+        if(preheader == null || latch == null)
+            return;
+        collectDefinitions();
+        for(InductionVariable iv : findInductionVariables())
+            reduceMultiplications(iv);
+        collectDefinitions();
+        for(InductionVariable iv : findInductionVariables())
+            replaceByPointer(iv);
+    }
+
+    private void processFunction(Function function) {
+        this.function = function;
+        loopAnalyzer.analyze(function);
+        if(loopAnalyzer.loops.isEmpty())
+            return;
+        if(loopAnalyzer.insertPreheaders()) {
+            function.finishBuild();
+            loopAnalyzer.analyze(function);
+        }
+        livenessAnalyzer.getLiveOut(function);
+        for(BasicBlock header : loopAnalyzer.getLoopsInnerFirst())
+            processLoop(header);
+    }
+}
@@ -0,0 +1,305 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.IRInstruction;
+import Mstar.IR.Instruction.Move;
+import Mstar.IR.Operand.*;
+import Mstar.IR.RegisterSet;
+
+import java.util.*;
+
+/*
+    Linear scan register allocation (Poletto & Sarkar).
+    the instructions are numbered along the reversePostOrder, every virtual register
+    gets one live interval covering all the positions where it is live, and the intervals
+    are assigned to physical registers in one pass sorted by their start positions.
+    the precolored registers keep their exact live ranges, a physical register can be
+    given to an interval only if none of its precolored ranges intersect the interval.
+    when the registers run out, the interval which ends last is spilled.
+
+    positions: the instruction i uses its registers at 2i and defines them at 2i+1,
+    so that a register dying at i and a register defined at i can share the same color.
+ */
+public class LinearScanAllocator {
+    //  general
+    private IRProgram irProgram;
+    private static LivenessAnalyzer livenessAnalyzer = new LivenessAnalyzer();
+    private ArrayList<PhysicalRegister> generalRegisters = new ArrayList<>();
+    private HashMap<PhysicalRegister, Integer> physicalIndex = new HashMap<>();
+
+    //  for process function
+    private Function function;
+    private int[] start;
+    private int[] end;
+    private int[] moveHint;
+    private int[][] fixedStart;
+    private int[][] fixedEnd;
+    private int[] color;
+    private HashSet<VirtualRegister> unspillable = new HashSet<>();
+    private HashSet<VirtualRegister> spilledRegisters;
+
+    public LinearScanAllocator(IRProgram irProgram) {
+        this.irProgram = irProgram;
+        //  prefer the caller save registers, just like SimpleGraphAllocator
+        for(PhysicalRegister pr : RegisterSet.callerSave)
+            generalRegisters.add(pr);
+        for(PhysicalRegister pr : RegisterSet.calleeSave)
+            generalRegisters.add(pr);
+        for(int i = 0; i < generalRegisters.size(); i++)
+            physicalIndex.put(generalRegisters.get(i), i);
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    private LinkedList<BasicBlock> getLinearOrder() {
+        LinkedList<BasicBlock> order = new LinkedList<>(function.reversePostOrder);
+        HashSet<BasicBlock> visited = new HashSet<>(order);
+        for(BasicBlock bb : function.basicblocks) {
+            if(visited.add(bb))
+                order.add(bb);
+        }
+        return order;
+    }
+
+    private void buildIntervals() {
+        HashMap<BasicBlock, BitSet> liveOut = livenessAnalyzer.getLiveOut(function, true);
+        int size = livenessAnalyzer.registers.size();
+        start = new int[size];
+        end = new int[size];
+        moveHint = new int[size];
+        Arrays.fill(start, Integer.MAX_VALUE);
+        Arrays.fill(end, -1);
+        Arrays.fill(moveHint, -1);
+        ArrayList<ArrayList<int[]>> fixedRanges = new ArrayList<>();
+        for(int i = 0; i < generalRegisters.size(); i++)
+            fixedRanges.add(new ArrayList<>());
+
+        int position = 0;
+        int[] openEnd = new int[size];
+        for(BasicBlock bb : getLinearOrder()) {
+            int from = position;
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next)
+                position += 2;
+            int to = position;
+
+            BitSet live = (BitSet) liveOut.get(bb).clone();
+            for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1))
+                openEnd[i] = to;
+            int now = to;
+            for(IRInstruction inst = bb.tail; inst != null; inst = inst.prev) {
+                now -= 2;
+                for(Register reg : inst.getDefRegs()) {
+                    int index = livenessAnalyzer.getIndex((VirtualRegister) reg);
+                    if(live.get(index)) {
+                        addRange(fixedRanges, index, now + 1, openEnd[index]);
+                        live.clear(index);
+                    } else {
+                        addRange(fixedRanges, index, now + 1, now + 1);
+                    }
+                }
+                for(Register reg : inst.getUseRegs()) {
+                    int index = livenessAnalyzer.getIndex((VirtualRegister) reg);
+                    if(!live.get(index)) {
+                        openEnd[index] = now;
+                        live.set(index);
+                    }
+                }
+                if(inst instanceof Move && ((Move) inst).dest instanceof VirtualRegister
+                        && ((Move) inst).src instanceof VirtualRegister) {
+                    int dest = livenessAnalyzer.getIndex((VirtualRegister) ((Move) inst).dest);
+                    int src = livenessAnalyzer.getIndex((VirtualRegister) ((Move) inst).src);
+                    moveHint[dest] = src;
+                }
+            }
+            for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1))
+                addRange(fixedRanges, i, from, openEnd[i]);
+        }
+
+        fixedStart = new int[generalRegisters.size()][];
+        fixedEnd = new int[generalRegisters.size()][];
+        for(int r = 0; r < generalRegisters.size(); r++) {
+            ArrayList<int[]> ranges = fixedRanges.get(r);
+            ranges.sort(Comparator.comparingInt(range -> range[0]));
+            fixedStart[r] = new int[ranges.size()];
+            fixedEnd[r] = new int[ranges.size()];
+            for(int i = 0; i < ranges.size(); i++) {
+                fixedStart[r][i] = ranges.get(i)[0];
+                fixedEnd[r][i] = ranges.get(i)[1];
+            }
+        }
+    }
+
+    private void addRange(ArrayList<ArrayList<int[]>> fixedRanges, int index, int from, int to) {
+        PhysicalRegister pr = livenessAnalyzer.registers.get(index).allocatedPhysicalRegister;
+        if(pr != null) {
+            Integer r = physicalIndex.get(pr);
+            if(r != null)
+                fixedRanges.get(r).add(new int[]{from, to});
+        } else {
+            start[index] = Math.min(start[index], from);
+            end[index] = Math.max(end[index], to);
+        }
+    }
+
+    //  whether the precolored ranges of the r-th register intersect the interval [from, to]
+    private boolean isBlocked(int r, int from, int to) {
+        int[] starts = fixedStart[r];
+        int[] ends = fixedEnd[r];
+        int lo = 0, hi = starts.length;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(starts[mid] <= to)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        //  the ranges of one register never overlap, so their ends are sorted as well
+        return lo > 0 && ends[lo - 1] >= from;
+    }
+
+    private boolean isFree(int r, boolean[] used, int vr) {
+        return !used[r] && !isBlocked(r, start[vr], end[vr]);
+    }
+
+    private void allocate() {
+        int size = start.length;
+        color = new int[size];
+        Arrays.fill(color, -1);
+        spilledRegisters = new HashSet<>();
+
+        ArrayList<Integer> intervals = new ArrayList<>();
+        for(int i = 0; i < size; i++) {
+            if(end[i] >= 0)
+                intervals.add(i);
+        }
+        intervals.sort(Comparator.comparingInt(i -> start[i]));
+
+        TreeSet<Integer> active = new TreeSet<>((a, b) -> end[a] != end[b] ? Integer.compare(end[a], end[b]) : Integer.compare(a, b));
+        boolean[] used = new boolean[generalRegisters.size()];
+        for(int vr : intervals) {
+            while(!active.isEmpty() && end[active.first()] < start[vr])
+                used[color[active.pollFirst()]] = false;
+
+            int r = -1;
+            int hint = moveHint[vr];
+            if(hint >= 0) {
+                PhysicalRegister pr = livenessAnalyzer.registers.get(hint).allocatedPhysicalRegister;
+                int hintColor = pr != null ? physicalIndex.getOrDefault(pr, -1) : color[hint];
+                if(hintColor >= 0 && isFree(hintColor, used, vr))
+                    r = hintColor;
+            }
+            for(int i = 0; r < 0 && i < generalRegisters.size(); i++) {
+                if(isFree(i, used, vr))
+                    r = i;
+            }
+            if(r >= 0) {
+                color[vr] = r;
+                used[r] = true;
+                active.add(vr);
+                continue;
+            }
+
+            //  no register is available, spill the interval which ends last
+            int victim = -1;
+            for(Iterator<Integer> it = active.descendingIterator(); it.hasNext(); ) {
+                int candidate = it.next();
+                if(!unspillable.contains(livenessAnalyzer.registers.get(candidate))
+                        && !isBlocked(color[candidate], start[vr], end[vr])) {
+                    victim = candidate;
+                    break;
+                }
+            }
+            VirtualRegister current = livenessAnalyzer.registers.get(vr);
+            if(victim >= 0 && (end[victim] > end[vr] || unspillable.contains(current))) {
+                active.remove(victim);
+                color[vr] = color[victim];
+                color[victim] = -1;
+                spilledRegisters.add(livenessAnalyzer.registers.get(victim));
+                active.add(vr);
+            } else {
+                spilledRegisters.add(current);
+            }
+        }
+    }
+
+    private LinkedList<VirtualRegister> trans(LinkedList<Register> regs) {
+        LinkedList<VirtualRegister> ret = new LinkedList<>();
+        for(Register r : regs) {
+            ret.add((VirtualRegister)r);
+        }
+        return ret;
+    }
+
+    private void rewriteFunction() {
+        HashMap<VirtualRegister, Memory> spillPlaces = new HashMap<>();
+        for(VirtualRegister vr : spilledRegisters) {
+            if(vr.spillPlace != null) {
+                spillPlaces.put(vr,  vr.spillPlace);
+            } else {
+                spillPlaces.put(vr, new StackSlot(vr.hint));
+            }
+        }
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                LinkedList<VirtualRegister> used = new LinkedList<>(trans(inst.getUseRegs()));
+                LinkedList<VirtualRegister> defined = new LinkedList<>(trans(inst.getDefRegs()));
+                HashMap<Register,Register> renameMap = new HashMap<>();
+                used.retainAll(spilledRegisters);
+                defined.retainAll(spilledRegisters);
+                for(VirtualRegister reg : used)
+                    if(!renameMap.containsKey(reg)) renameMap.put(reg, new VirtualRegister(""));
+                for(VirtualRegister reg : defined)
+                    if(!renameMap.containsKey(reg)) renameMap.put(reg, new VirtualRegister(""));
+                for(Register reg : renameMap.values())
+                    unspillable.add((VirtualRegister) reg);
+                inst.renameDefReg(renameMap);
+                inst.renameUseReg(renameMap);
+                for(VirtualRegister reg : used)
+                    inst.prepend(new Move(inst.bb, renameMap.get(reg), spillPlaces.get(reg)));
+                for(VirtualRegister reg : defined) {
+                    inst.append(new Move(inst.bb, spillPlaces.get(reg), renameMap.get(reg)));
+                    inst = inst.next;
+                }
+            }
+        }
+    }
+
+    private void replaceRegisters() {
+        HashMap<Register,Register> renameMap = new HashMap<>();
+        for(int i = 0; i < color.length; i++) {
+            VirtualRegister vr = livenessAnalyzer.registers.get(i);
+            if(vr.allocatedPhysicalRegister != null)
+                renameMap.put(vr, vr.allocatedPhysicalRegister);
+            else if(color[i] >= 0)
+                renameMap.put(vr, generalRegisters.get(color[i]));
+        }
+        for(BasicBlock bb : function.basicblocks)
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                inst.renameUseReg(renameMap);
+                inst.renameDefReg(renameMap);
+                if(inst instanceof Move && ((Move) inst).src == ((Move) inst).dest)
+                    inst.remove();
+            }
+    }
+
+    void processFunction(Function function) {
+        this.function = function;
+        while(true) {
+            buildIntervals();
+            allocate();
+            if(!spilledRegisters.isEmpty())
+                rewriteFunction();
+            else {
+                replaceRegisters();
+                break;
+            }
+        }
+        unspillable.clear();
+        function.finishAllocate();
+    }
+}
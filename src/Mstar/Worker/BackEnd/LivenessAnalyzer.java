@@ -9,101 +9,166 @@ import Mstar.IR.Instruction.Move;
 import Mstar.IR.Operand.Register;
 import Mstar.IR.Operand.VirtualRegister;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.*;
 import java.util.function.BiConsumer;
-import java.util.function.Consumer;
-
-import static java.lang.System.exit;
 
 public class LivenessAnalyzer {
 
+    /*
+        Chaitin-Briggs style interference graph over the dense register numbers:
+        a triangular bit matrix answers isLinked in O(1), the growable int arrays
+        give the adjacents of each register, and the degree counters can be
+        snapshotted by the allocator instead of deep-copying the whole graph
+     */
     public static class Graph {
-        HashMap<VirtualRegister,HashSet<VirtualRegister>> graph;
+        private ArrayList<VirtualRegister> registers;
+        private int size;
+        private long[] matrix;
+        private int[][] adjList;
+        private int[] degree;
 
         Graph() {
-            graph = new HashMap<>();
+            clear();
+        }
+        void init(ArrayList<VirtualRegister> registers) {
+            this.registers = registers;
+            this.size = registers.size();
+            this.matrix = new long[(int)(((long) size * (size - 1) / 2 + 63) >> 6)];
+            this.adjList = new int[size][];
+            this.degree = new int[size];
         }
-        Graph(Graph g) {
-            graph = new HashMap<>();
-            for(VirtualRegister reg : g.getAllRegisters())
-                graph.put(reg, new HashSet<>(g.getAdjacents(reg)));
+        private long bitIndex(int a, int b) {
+            return a > b ? (long) a * (a - 1) / 2 + b : (long) b * (b - 1) / 2 + a;
         }
-        void addRegiser(VirtualRegister vr) {
-            if(graph.containsKey(vr)) return;
-            graph.put(vr, new HashSet<>());
+        private void addAdjacent(int a, int b) {
+            if(adjList[a] == null)
+                adjList[a] = new int[4];
+            else if(degree[a] == adjList[a].length)
+                adjList[a] = Arrays.copyOf(adjList[a], degree[a] * 2);
+            adjList[a][degree[a]++] = b;
         }
-        void addRegisers(Collection<VirtualRegister> vrs) {
-            for(VirtualRegister reg : vrs)
-                addRegiser(reg);
+        private void delAdjacent(int a, int b) {
+            for(int i = 0; i < degree[a]; i++) {
+                if(adjList[a][i] == b) {
+                    adjList[a][i] = adjList[a][--degree[a]];
+                    return;
+                }
+            }
         }
-        void addEdge(VirtualRegister a, VirtualRegister b) {
+        void addEdge(int a, int b) {
             if(a == b) return;
-            graph.get(a).add(b);
-            graph.get(b).add(a);
+            long bit = bitIndex(a, b);
+            if((matrix[(int)(bit >> 6)] & (1L << bit)) != 0)
+                return;
+            matrix[(int)(bit >> 6)] |= 1L << bit;
+            addAdjacent(a, b);
+            addAdjacent(b, a);
         }
-        void delEdge(VirtualRegister a, VirtualRegister b) {
-            if(graph.containsKey(a) && graph.get(a).contains(b)) {
-                graph.get(a).remove(b);
-                graph.get(b).remove(a);
-            }
+        void delEdge(int a, int b) {
+            if(!isLinked(a, b)) return;
+            long bit = bitIndex(a, b);
+            matrix[(int)(bit >> 6)] &= ~(1L << bit);
+            delAdjacent(a, b);
+            delAdjacent(b, a);
         }
-        void delRegister(VirtualRegister vr) {
-            for(VirtualRegister reg : getAdjacents(vr))
-                graph.get(reg).remove(vr);
-            graph.remove(vr);
+        boolean isLinked(int a, int b) {
+            if(a == b) return false;
+            long bit = bitIndex(a, b);
+            return (matrix[(int)(bit >> 6)] & (1L << bit)) != 0;
         }
-        int getDegree(VirtualRegister a) {
-            return graph.containsKey(a) ? graph.get(a).size() : 0;
+        int getDegree(int a) {
+            return degree[a];
         }
-        boolean isLinked(VirtualRegister a, VirtualRegister b) {
-            return graph.containsKey(a) && graph.get(a).contains(b);
+        int[] getDegrees() {
+            return Arrays.copyOf(degree, size);
         }
-        void clear() {
-            graph.clear();
+        int[] getAdjacents(int a) {
+            return adjList[a] == null ? new int[0] : adjList[a];
         }
-        void forEach(BiConsumer<VirtualRegister,VirtualRegister> consumer) {
-            for(VirtualRegister reg1 : graph.keySet())
-                for(VirtualRegister reg2 : graph.get(reg1))
-                    consumer.accept(reg1, reg2);
+        int size() {
+            return size;
         }
-        Collection<VirtualRegister> getAdjacents(VirtualRegister a) {
-            return graph.getOrDefault(a, new HashSet<>());
+        VirtualRegister getRegister(int a) {
+            return registers.get(a);
         }
-        Collection<VirtualRegister> getAllRegisters() {
-            return graph.keySet();
+        void clear() {
+            init(new ArrayList<>());
+        }
+        void forEach(BiConsumer<Integer,Integer> consumer) {
+            for(int a = 0; a < size; a++)
+                for(int i = 0; i < degree[a]; i++)
+                    consumer.accept(a, adjList[a][i]);
         }
-
     }
-    public HashMap<BasicBlock, HashSet<VirtualRegister>> liveOut;
-    public HashMap<BasicBlock, HashSet<VirtualRegister>> usedRegisters;
-    public HashMap<BasicBlock, HashSet<VirtualRegister>> definedRegisters;
+
+    /*
+        the virtual registers of the analyzed function are numbered densely,
+        so that the live-in, live-out, use and define sets can be kept as
+        word-packed bitsets indexed by the register number
+     */
+    public ArrayList<VirtualRegister> registers;
+    public HashMap<VirtualRegister,Integer> registerIndex;
+
+    public HashMap<BasicBlock, BitSet> liveIn;
+    public HashMap<BasicBlock, BitSet> liveOut;
+    public HashMap<BasicBlock, BitSet> usedRegisters;
+    public HashMap<BasicBlock, BitSet> definedRegisters;
 
     private void init(Function function) {
+        registers = new ArrayList<>();
+        registerIndex = new HashMap<>();
+        liveIn = new HashMap<>();
         liveOut = new HashMap<>();
         usedRegisters = new HashMap<>();
         definedRegisters = new HashMap<>();
         for(BasicBlock bb : function.basicblocks) {
-            liveOut.put(bb, new HashSet<>());
-            usedRegisters.put(bb, new HashSet<>());
-            definedRegisters.put(bb, new HashSet<>());
+            liveIn.put(bb, new BitSet());
+            liveOut.put(bb, new BitSet());
+        }
+    }
+
+    public int getIndex(VirtualRegister vr) {
+        Integer index = registerIndex.get(vr);
+        if(index == null) {
+            index = registers.size();
+            registers.add(vr);
+            registerIndex.put(vr, index);
         }
+        return index;
+    }
+
+    public BitSet toBitSet(Collection<Register> regs) {
+        BitSet bitSet = new BitSet();
+        for(Register reg : regs)
+            bitSet.set(getIndex((VirtualRegister) reg));
+        return bitSet;
     }
+
+    public LinkedList<VirtualRegister> toRegisters(BitSet bitSet) {
+        LinkedList<VirtualRegister> regs = new LinkedList<>();
+        for(int i = bitSet.nextSetBit(0); i >= 0; i = bitSet.nextSetBit(i + 1))
+            regs.add(registers.get(i));
+        return regs;
+    }
+
+    public LinkedList<Register> getUsedRegs(IRInstruction inst, boolean nowAfterAllocate) {
+        if(inst instanceof Call && !nowAfterAllocate)
+            return ((Call) inst).getCallUsed();
+        else
+            return inst.getUseRegs();
+    }
+
     private void initUsedAndDefinedRegisters(BasicBlock bb, boolean nowAfterAllocate) {
-        HashSet<VirtualRegister> bbUsedRegisters = new HashSet<>();
-        HashSet<VirtualRegister> bbDefinedRegisters = new HashSet<>();
+        BitSet bbUsedRegisters = new BitSet();
+        BitSet bbDefinedRegisters = new BitSet();
         for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
-            LinkedList<Register> usedRegs;
-            if(inst instanceof Call && !nowAfterAllocate)
-                usedRegs = ((Call) inst).getCallUsed();
-            else
-                usedRegs = inst.getUseRegs();
-            for(VirtualRegister reg : trans(usedRegs))
-                if(!bbDefinedRegisters.contains(reg))
-                    bbUsedRegisters.add(reg);
-            bbDefinedRegisters.addAll(trans(inst.getDefRegs()));
+            for(Register reg : getUsedRegs(inst, nowAfterAllocate)) {
+                int index = getIndex((VirtualRegister) reg);
+                if(!bbDefinedRegisters.get(index))
+                    bbUsedRegisters.set(index);
+            }
+            for(Register reg : inst.getDefRegs())
+                bbDefinedRegisters.set(getIndex((VirtualRegister) reg));
         }
         definedRegisters.put(bb, bbDefinedRegisters);
         usedRegisters.put(bb, bbUsedRegisters);
@@ -132,26 +197,42 @@ public class LivenessAnalyzer {
         for(BasicBlock bb : function.basicblocks)
             initUsedAndDefinedRegisters(bb, nowAfterAllocate);
 
-        /* calculate the liveOut set of each BasicBlock */
-        boolean changed = true;
-        while(changed) {
-            changed = false;
-            LinkedList<BasicBlock> basicBlocks = function.reversePostOrderOnReverseCFG;
-            for(BasicBlock bb : basicBlocks) {
-                int oldSize = liveOut.get(bb).size();
-                for(BasicBlock succ : bb.successors) {
-                    HashSet<VirtualRegister> regs = new HashSet<>(liveOut.get(succ));
-                    regs.removeAll(definedRegisters.get(succ));
-                    regs.addAll(usedRegisters.get(succ));
-                    liveOut.get(bb).addAll(regs);
+        /*
+            calculate the liveIn and liveOut set of each BasicBlock with a worklist,
+            a BasicBlock is revisited only when the liveIn set of one of its successors changed.
+            the blocks which can not reach the leaveBB (e.g. infinite loops) are appended at last
+         */
+        ArrayDeque<BasicBlock> worklist = new ArrayDeque<>(function.reversePostOrderOnReverseCFG);
+        HashSet<BasicBlock> inWorklist = new HashSet<>(worklist);
+        for(BasicBlock bb : function.basicblocks) {
+            if(inWorklist.add(bb))
+                worklist.add(bb);
+        }
+        while(!worklist.isEmpty()) {
+            BasicBlock bb = worklist.poll();
+            inWorklist.remove(bb);
+            BitSet bbLiveOut = liveOut.get(bb);
+            for(BasicBlock succ : bb.successors)
+                bbLiveOut.or(liveIn.get(succ));
+            BitSet bbLiveIn = (BitSet) bbLiveOut.clone();
+            bbLiveIn.andNot(definedRegisters.get(bb));
+            bbLiveIn.or(usedRegisters.get(bb));
+            if(!bbLiveIn.equals(liveIn.get(bb))) {
+                liveIn.put(bb, bbLiveIn);
+                for(BasicBlock pred : bb.frontiers) {
+                    if(inWorklist.add(pred))
+                        worklist.add(pred);
                 }
-                changed = changed || liveOut.get(bb).size() != oldSize;
             }
         }
     }
 
-    public HashMap<BasicBlock,HashSet<VirtualRegister>> getLiveOut(Function function) {
-        calcLiveOut(function, false);
+    public HashMap<BasicBlock,BitSet> getLiveOut(Function function) {
+        return getLiveOut(function, false);
+    }
+
+    public HashMap<BasicBlock,BitSet> getLiveOut(Function function, boolean nowAfterAllocate) {
+        calcLiveOut(function, nowAfterAllocate);
         return liveOut;
     }
 
@@ -161,33 +242,31 @@ public class LivenessAnalyzer {
     ) {
         calcLiveOut(function, true);
 
-        inferenceGraph.clear();
+        inferenceGraph.init(registers);
         if(moveGraph != null)
-            moveGraph.clear();
-
-        for(BasicBlock bb : function.basicblocks) {
-            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
-                inferenceGraph.addRegisers(trans(inst.getDefRegs()));
-                inferenceGraph.addRegisers(trans(inst.getUseRegs()));
-            }
-        }
+            moveGraph.init(registers);
 
         /* calculate the inference graph and move graph when needed */
         for(BasicBlock bb : function.basicblocks) {
-            HashSet<VirtualRegister> liveNow = new HashSet<>(liveOut.get(bb));
+            BitSet liveNow = (BitSet) liveOut.get(bb).clone();
             for(IRInstruction inst = bb.tail; inst != null; inst = inst.prev) {
                 boolean isMBR = isMoveBetweenRegisters(inst);
-                for(VirtualRegister reg1 : trans(inst.getDefRegs())) {
-                    for(VirtualRegister reg2 : liveNow) {
-                        if(isMBR && moveGraph != null && ((Move)inst).src == reg1) {
-                            moveGraph.addEdge(reg1, reg2);
+                BitSet defined = toBitSet(inst.getDefRegs());
+                if(isMBR && moveGraph != null) {
+                    int dest = getIndex((VirtualRegister) ((Move) inst).dest);
+                    int src = getIndex((VirtualRegister) ((Move) inst).src);
+                    if(dest != src)
+                        moveGraph.addEdge(dest, src);
+                }
+                for(int i = defined.nextSetBit(0); i >= 0; i = defined.nextSetBit(i + 1)) {
+                    for(int j = liveNow.nextSetBit(0); j >= 0; j = liveNow.nextSetBit(j + 1)) {
+                        if(isMBR && moveGraph != null && ((Move)inst).src == registers.get(j))
                             continue;
-                        }
-                        inferenceGraph.addEdge(reg1, reg2);
+                        inferenceGraph.addEdge(i, j);
                     }
                 }
-                liveNow.removeAll(trans(inst.getDefRegs()));
-                liveNow.addAll(trans(inst.getUseRegs()));
+                liveNow.andNot(defined);
+                liveNow.or(toBitSet(inst.getUseRegs()));
             }
         }
 
@@ -0,0 +1,175 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.VirtualRegister;
+
+import java.util.*;
+
+/*
+    find the natural loops of a function from its BasicBlock CFG.
+    an edge bb -> header is a back edge when header dominates bb,
+    the body of the loop is header plus all the blocks reaching bb without passing header.
+    loops sharing the same header are merged into one.
+    the loops form a forest by nesting, the parent of a loop is the smallest other loop containing its header.
+    the loop optimizations on SSA form ask for a preheader of every loop.
+ */
+public class LoopAnalyzer {
+    public HashMap<BasicBlock, HashSet<BasicBlock>> loops;
+    public HashMap<BasicBlock, Integer> loopDepth;
+    public HashMap<BasicBlock, BasicBlock> loopParent;
+    public HashMap<BasicBlock, LinkedList<BasicBlock>> loopChildren;
+
+    private Function function;
+
+    public void analyze(Function function) {
+        this.function = function;
+        function.calcDominatorTree();
+        loops = new HashMap<>();
+        loopDepth = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks)
+            loopDepth.put(bb, 0);
+        for(BasicBlock bb : function.reversePostOrder) {
+            for(BasicBlock header : bb.successors) {
+                if(dominates(header, bb))
+                    addLoop(header, bb);
+            }
+        }
+        for(HashSet<BasicBlock> body : loops.values()) {
+            for(BasicBlock bb : body)
+                loopDepth.put(bb, loopDepth.get(bb) + 1);
+        }
+        buildLoopForest();
+    }
+
+    private void buildLoopForest() {
+        loopParent = new HashMap<>();
+        loopChildren = new HashMap<>();
+        for(BasicBlock header : loops.keySet())
+            loopChildren.put(header, new LinkedList<>());
+        for(BasicBlock header : loops.keySet()) {
+            BasicBlock parent = null;
+            for(BasicBlock other : loops.keySet()) {
+                if(other == header || !loops.get(other).contains(header))
+                    continue;
+                if(parent == null || loops.get(other).size() < loops.get(parent).size())
+                    parent = other;
+            }
+            if(parent != null) {
+                loopParent.put(header, parent);
+                loopChildren.get(parent).add(header);
+            }
+        }
+    }
+
+    //  the loop headers ordered so that every loop comes before the loops containing it
+    public LinkedList<BasicBlock> getLoopsInnerFirst() {
+        LinkedList<BasicBlock> order = new LinkedList<>();
+        LinkedList<BasicBlock> stack = new LinkedList<>();
+        for(BasicBlock header : function.reversePostOrder) {
+            if(loops.containsKey(header) && !loopParent.containsKey(header))
+                stack.push(header);
+        }
+        while(!stack.isEmpty()) {
+            BasicBlock header = stack.pop();
+            order.addFirst(header);
+            for(BasicBlock child : loopChildren.get(header))
+                stack.push(child);
+        }
+        return order;
+    }
+
+    public int getLoopDepth(BasicBlock bb) {
+        return loopDepth.getOrDefault(bb, 0);
+    }
+
+    //  whether a dominates b, unreachable blocks are dominated by nothing
+    public boolean dominates(BasicBlock a, BasicBlock b) {
+        return isReachable(b) && function.dominates(a, b);
+    }
+
+    private boolean isReachable(BasicBlock bb) {
+        return bb == function.enterBB || bb.idom != null;
+    }
+
+    private void addLoop(BasicBlock header, BasicBlock tail) {
+        HashSet<BasicBlock> body = loops.computeIfAbsent(header, k -> new HashSet<>());
+        body.add(header);
+        LinkedList<BasicBlock> worklist = new LinkedList<>();
+        if(body.add(tail))
+            worklist.add(tail);
+        while(!worklist.isEmpty()) {
+            BasicBlock bb = worklist.poll();
+            for(BasicBlock pred : bb.frontiers) {
+                if(isReachable(pred) && body.add(pred))
+                    worklist.add(pred);
+            }
+        }
+    }
+
+    private void redirect(BasicBlock from, BasicBlock oldTarget, BasicBlock newTarget) {
+        if(from.tail instanceof Jump) {
+            if(((Jump) from.tail).targetBB == oldTarget)
+                ((Jump) from.tail).targetBB = newTarget;
+        } else if(from.tail instanceof CJump) {
+            CJump cJump = (CJump) from.tail;
+            if(cJump.thenBB == oldTarget)
+                cJump.thenBB = newTarget;
+            if(cJump.elseBB == oldTarget)
+                cJump.elseBB = newTarget;
+        }
+    }
+
+    /*
+        make sure every loop header has a preheader: the only predecessor outside the loop, ending with
+        a jump to the header. the phis of the header are split when several blocks enter the loop.
+        return whether the CFG changes, the caller should finishBuild and analyze again.
+     */
+    public boolean insertPreheaders() {
+        boolean changed = false;
+        for(BasicBlock header : loops.keySet()) {
+            if(header == function.enterBB)
+                continue;
+            HashSet<BasicBlock> loopBody = loops.get(header);
+            LinkedList<BasicBlock> outside = new LinkedList<>();
+            for(BasicBlock pred : new LinkedHashSet<>(header.frontiers)) {
+                if(!loopBody.contains(pred))
+                    outside.add(pred);
+            }
+            if(outside.size() == 1 && outside.getFirst().tail instanceof Jump)
+                continue;
+            BasicBlock newPreheader = new BasicBlock(function, "preheader");
+            newPreheader.append(new Jump(newPreheader, header));
+            for(BasicBlock pred : outside)
+                redirect(pred, header, newPreheader);
+            for(IRInstruction inst = header.head; inst instanceof Phi; inst = inst.next) {
+                Phi phi = (Phi) inst;
+                if(outside.size() == 1) {
+                    phi.paths.put(newPreheader, phi.paths.remove(outside.getFirst()));
+                    continue;
+                }
+                Phi outsidePhi = new Phi(newPreheader, new VirtualRegister(phi.dest.hint));
+                for(BasicBlock pred : outside)
+                    outsidePhi.paths.put(pred, phi.paths.remove(pred));
+                newPreheader.head.prepend(outsidePhi);
+                phi.paths.put(newPreheader, outsidePhi.dest);
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    //  the preheader of the loop, or null if it has none
+    public BasicBlock getPreheader(BasicBlock header) {
+        BasicBlock preheader = null;
+        for(BasicBlock pred : header.frontiers) {
+            if(loops.get(header).contains(pred))
+                continue;
+            if(preheader != null && preheader != pred)
+                return null;
+            preheader = pred;
+        }
+        return preheader != null && preheader.tail instanceof Jump ? preheader : null;
+    }
+}
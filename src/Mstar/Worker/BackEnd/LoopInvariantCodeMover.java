@@ -0,0 +1,399 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+
+import java.util.*;
+
+import static Mstar.IR.RegisterSet.vcallerSave;
+import static Mstar.IR.RegisterSet.vrax;
+import static Mstar.IR.RegisterSet.vrdx;
+
+/*
+    loop invariant code motion on the SSA form.
+    every loop gets a preheader (see LoopAnalyzer), a definition chain computing the same value in every iteration is
+    moved to the end of the preheader, the loops are visited inner first so an invariant moved out
+    of an inner loop can continue to the preheader of the outer one.
+
+    a chain is invariant when all its operands are constants or registers defined outside the loop.
+    the group "mov vrax, a; imul b; mov v, vrax" is moved as a whole when rax and rdx are free at
+    the header. DIV and MOD are never moved since they can trap.
+    the group "call f(args); mov v, vrax" is moved as a whole when f does not write (see FunctionEffectAnalyzer),
+    the caller saved registers are free at the header, it is executed before every exit of the loop
+    (f may trap or never return), and if f reads memory, the loop neither stores nor calls a writing function.
+    a load is only moved when
+        no writing Call in the loop, and no store in the loop may write the same location:
+            the elements start at offset 8, so an element with index only overlaps an access
+            without index at an offset of 8 or more (a field, or an element with constant index),
+            two accesses without index overlap when they have the same offset
+        and it can not fault earlier than the original one:
+            it is executed before every exit of the loop, or
+            its base register is already dereferenced in the preheader or a block dominating it
+    an invariant load used as the src of a variant BinaryInst is loaded into a new register in the preheader.
+ */
+public class LoopInvariantCodeMover {
+    private IRProgram irProgram;
+    private LoopAnalyzer loopAnalyzer;
+    private LivenessAnalyzer livenessAnalyzer;
+
+    //  for process function
+    private Function function;
+    private HashMap<VirtualRegister, LinkedList<IRInstruction>> chains;
+    private HashMap<VirtualRegister, BasicBlock> defBlock;
+    private HashMap<Register, HashSet<BasicBlock>> dereferencedBlocks;
+
+    //  for process loop
+    private HashSet<BasicBlock> body;
+    private BasicBlock preheader;
+    private boolean hasCall;
+    private LinkedList<Memory> stores;
+    private LinkedList<BasicBlock> exitingBlocks;
+    private HashSet<Register> assignedInLoop;
+
+    public LoopInvariantCodeMover(IRProgram irProgram) {
+        this.irProgram = irProgram;
+        this.loopAnalyzer = new LoopAnalyzer();
+        this.livenessAnalyzer = new LivenessAnalyzer();
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    private boolean isInvariant(Operand operand) {
+        if(operand instanceof Memory)
+            return false;
+        if(operand instanceof Constant)
+            return true;
+        if(operand instanceof VirtualRegister && ((VirtualRegister) operand).allocatedPhysicalRegister == null)
+            return getInvariantRegister((Register) operand) != null;
+        return false;
+    }
+
+    //  the src of reg if reg is defined by a plain copy of another virtual register, otherwise null
+    private Register getCopySource(Register reg) {
+        LinkedList<IRInstruction> chain = chains.get(reg);
+        if(chain == null || chain.size() != 1 || !(chain.getFirst() instanceof Move))
+            return null;
+        Operand src = ((Move) chain.getFirst()).src;
+        if(src instanceof VirtualRegister && ((VirtualRegister) src).allocatedPhysicalRegister == null)
+            return (Register) src;
+        return null;
+    }
+
+    /*
+        reg itself if it is defined outside the loop, or the first register defined outside the loop
+        in the copies reg comes from, so the copies inside the loop do not need to be moved.
+        a global variable or a parameter on the stack is not in SSA form, it keeps its value
+        when the loop does not assign it and calls no function which may change it.
+     */
+    private Register getInvariantRegister(Register reg) {
+        while(reg != null) {
+            if(!SSAConstructor.isRenamable(reg))
+                return !hasCall && !assignedInLoop.contains(reg) ? reg : null;
+            BasicBlock bb = defBlock.get(reg);
+            if(bb != null && !body.contains(bb))
+                return reg;
+            reg = getCopySource(reg);
+        }
+        return null;
+    }
+
+    //  read the registers defined outside the loop instead of their copies inside it
+    private void renameToInvariantRegisters(IRInstruction inst) {
+        HashMap<Register, Register> renameMap = new HashMap<>();
+        for(VirtualRegister vr : SSAConstructor.getUses(inst)) {
+            Register invariant = getInvariantRegister(vr);
+            if(invariant != null && invariant != vr)
+                renameMap.put(vr, invariant);
+        }
+        if(!renameMap.isEmpty())
+            inst.renameUseReg(renameMap);
+    }
+
+    private boolean mayAlias(Memory load, Memory store) {
+        if(load instanceof StackSlot || store instanceof StackSlot)
+            return load == store;
+        boolean loadStatic = load.base == null && load.index == null;
+        boolean storeStatic = store.base == null && store.index == null;
+        if(loadStatic || storeStatic)
+            return loadStatic && storeStatic;
+        int loadOffset = load.constant instanceof Immediate ? ((Immediate) load.constant).value : 0;
+        int storeOffset = store.constant instanceof Immediate ? ((Immediate) store.constant).value : 0;
+        if(load.index == null && store.index == null)
+            return loadOffset == storeOffset;
+        if(load.index == null)
+            return loadOffset >= 8;
+        if(store.index == null)
+            return storeOffset >= 8;
+        return true;
+    }
+
+    //  the register a chain of plain copies starts from
+    private Register getCopyRoot(Register reg) {
+        for(Register src = getCopySource(reg); SSAConstructor.isRenamable(src); src = getCopySource(src))
+            reg = src;
+        return reg;
+    }
+
+    private boolean isDereferencedBefore(Register base) {
+        HashSet<BasicBlock> blocks = dereferencedBlocks.get(getCopyRoot(base));
+        if(blocks == null)
+            return false;
+        for(BasicBlock bb = preheader; bb != null; bb = bb.idom) {
+            if(blocks.contains(bb))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isExecutedBeforeExits(BasicBlock bb) {
+        if(exitingBlocks.isEmpty())
+            return false;
+        for(BasicBlock exiting : exitingBlocks) {
+            if(!function.dominates(bb, exiting))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isInvariantLoad(Memory memory, IRInstruction at) {
+        if(hasCall || memory instanceof StackSlot)
+            return false;
+        if(memory.base != null && !isInvariant(memory.base))
+            return false;
+        if(memory.index != null && !isInvariant(memory.index))
+            return false;
+        for(Memory store : stores) {
+            if(mayAlias(memory, store))
+                return false;
+        }
+        if(memory.base == null && memory.index == null)
+            return true;
+        if(isExecutedBeforeExits(at.bb))
+            return true;
+        return memory.index == null && isDereferencedBefore(memory.base);
+    }
+
+    private boolean isInvariantOperand(Operand operand, IRInstruction at) {
+        if(operand instanceof Memory)
+            return isInvariantLoad((Memory) operand, at);
+        return isInvariant(operand);
+    }
+
+    /*
+        the instructions to move for the chain of vr, or null if it is not invariant
+        or not worth moving (a plain copy of a constant or an invariant register)
+     */
+    private LinkedList<IRInstruction> getInvariantInstructions(VirtualRegister vr, HashSet<Register> liveInHeader) {
+        LinkedList<IRInstruction> chain = chains.get(vr);
+        LinkedList<IRInstruction> insts = new LinkedList<>();
+        boolean worth = false;
+        for(IRInstruction inst : chain) {
+            if(inst instanceof Move) {
+                Operand src = ((Move) inst).src;
+                if(src == vrax && inst == chain.getFirst()) {
+                    LinkedList<IRInstruction> group = inst.prev instanceof Call
+                            ? getCallGroup(inst, liveInHeader) : getMultiplyGroup(inst, liveInHeader);
+                    if(group == null)
+                        return null;
+                    insts.addAll(group);
+                    worth = true;
+                } else {
+                    if(!isInvariantOperand(src, inst))
+                        return null;
+                    worth |= src instanceof Memory;
+                }
+            } else if(inst instanceof Lea) {
+                Memory src = ((Lea) inst).src;
+                if((src.base != null && !isInvariant(src.base)) || (src.index != null && !isInvariant(src.index)))
+                    return null;
+                worth = true;
+            } else if(inst instanceof BinaryInst) {
+                BinaryInst.BinaryOp op = ((BinaryInst) inst).op;
+                if(op == BinaryInst.BinaryOp.DIV || op == BinaryInst.BinaryOp.MOD)
+                    return null;
+                if(!isInvariantOperand(((BinaryInst) inst).src, inst))
+                    return null;
+                worth = true;
+            } else if(inst instanceof UnaryInst) {
+                worth = true;
+            } else {
+                return null;
+            }
+            insts.add(inst);
+        }
+        return worth ? insts : null;
+    }
+
+    //  "mov vrax, a; imul b" right before move, null if it is not there or not invariant
+    private LinkedList<IRInstruction> getMultiplyGroup(IRInstruction move, HashSet<Register> liveInHeader) {
+        if(liveInHeader.contains(vrax) || liveInHeader.contains(vrdx))
+            return null;
+        if(!(move.prev instanceof BinaryInst) || !(move.prev.prev instanceof Move))
+            return null;
+        BinaryInst multiply = (BinaryInst) move.prev;
+        Move load = (Move) move.prev.prev;
+        if(multiply.op != BinaryInst.BinaryOp.MUL || multiply.dest != null || load.dest != vrax)
+            return null;
+        if(!isInvariant(multiply.src) || !isInvariant(load.src))
+            return null;
+        LinkedList<IRInstruction> group = new LinkedList<>();
+        group.add(load);
+        group.add(multiply);
+        return group;
+    }
+
+    //  the Call right before move, null if it may write, reads changed memory or has variant arguments
+    private LinkedList<IRInstruction> getCallGroup(IRInstruction move, HashSet<Register> liveInHeader) {
+        Call call = (Call) move.prev;
+        if(call.func.effect == Function.Effect.Writing || !call.func.hasReturnValue)
+            return null;
+        if(call.func.effect == Function.Effect.ReadOnly && (hasCall || !stores.isEmpty()))
+            return null;
+        for(Register reg : vcallerSave) {
+            if(liveInHeader.contains(reg))
+                return null;
+        }
+        if(!isExecutedBeforeExits(call.bb))
+            return null;
+        for(Operand arg : call.args) {
+            if(!isInvariantOperand(arg, call))
+                return null;
+        }
+        LinkedList<IRInstruction> group = new LinkedList<>();
+        group.add(call);
+        return group;
+    }
+
+    private void collectLoopInfo(BasicBlock header) {
+        body = loopAnalyzer.loops.get(header);
+        preheader = loopAnalyzer.getPreheader(header);
+        hasCall = false;
+        stores = new LinkedList<>();
+        exitingBlocks = new LinkedList<>();
+        assignedInLoop = new HashSet<>();
+        for(BasicBlock bb : body) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                assignedInLoop.addAll(inst.getDefRegs());
+                if(inst instanceof Call)
+                    hasCall |= ((Call) inst).func.effect == Function.Effect.Writing;
+                else if(GlobalValueNumberOptimizer.isMemoryWrite(inst))
+                    stores.add(getStoreDest(inst));
+            }
+            for(BasicBlock succ : bb.successors) {
+                if(!body.contains(succ)) {
+                    exitingBlocks.add(bb);
+                    break;
+                }
+            }
+        }
+    }
+
+    private Memory getStoreDest(IRInstruction inst) {
+        if(inst instanceof Move)
+            return (Memory) ((Move) inst).dest;
+        if(inst instanceof BinaryInst)
+            return (Memory) ((BinaryInst) inst).dest;
+        if(inst instanceof UnaryInst)
+            return (Memory) ((UnaryInst) inst).dest;
+        return (Memory) ((Pop) inst).dest;
+    }
+
+    private void processLoop(BasicBlock header) {
+        collectLoopInfo(header);
+        if(preheader == null)
+            return;
+        HashSet<Register> liveInHeader = new HashSet<>(livenessAnalyzer.toRegisters(livenessAnalyzer.liveIn.get(header)));
+        for(BasicBlock bb : function.reversePostOrder) {
+            if(!body.contains(bb))
+                continue;
+            LinkedList<VirtualRegister> candidates = new LinkedList<>();
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                for(VirtualRegister vr : SSAConstructor.getDefs(inst)) {
+                    if(chains.containsKey(vr) && chains.get(vr).getLast() == inst)
+                        candidates.add(vr);
+                }
+            }
+            for(VirtualRegister vr : candidates) {
+                LinkedList<IRInstruction> insts = getInvariantInstructions(vr, liveInHeader);
+                if(insts == null)
+                    continue;
+                for(IRInstruction inst : insts) {
+                    inst.remove();
+                    inst.bb = preheader;
+                    renameToInvariantRegisters(inst);
+                    preheader.tail.prepend(inst);
+                }
+                defBlock.put(vr, preheader);
+            }
+            //  an invariant load read by a variant BinaryInst is loaded once in the preheader
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(!(inst instanceof BinaryInst) || !(((BinaryInst) inst).src instanceof Memory))
+                    continue;
+                Memory src = (Memory) ((BinaryInst) inst).src;
+                if(!isInvariantLoad(src, inst))
+                    continue;
+                VirtualRegister value = new VirtualRegister("");
+                Move load = new Move(preheader, value, src);
+                renameToInvariantRegisters(load);
+                preheader.tail.prepend(load);
+                ((BinaryInst) inst).src = value;
+                defBlock.put(value, preheader);
+            }
+        }
+    }
+
+    private void processFunction(Function function) {
+        this.function = function;
+        loopAnalyzer.analyze(function);
+        if(loopAnalyzer.loops.isEmpty())
+            return;
+        if(loopAnalyzer.insertPreheaders()) {
+            function.finishBuild();
+            loopAnalyzer.analyze(function);
+        }
+        livenessAnalyzer.getLiveOut(function);
+
+        chains = SSAConstructor.getDefinitionChains(function);
+        defBlock = new HashMap<>();
+        dereferencedBlocks = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                for(Register reg : inst.getDefRegs()) {
+                    if(SSAConstructor.isRenamable(reg))
+                        defBlock.put((VirtualRegister) reg, bb);
+                }
+                if(inst instanceof Lea)
+                    continue;
+                for(Operand operand : getOperands(inst)) {
+                    if(operand instanceof Memory && ((Memory) operand).base != null)
+                        dereferencedBlocks.computeIfAbsent(getCopyRoot(((Memory) operand).base), k -> new HashSet<>()).add(bb);
+                }
+            }
+        }
+        for(BasicBlock header : loopAnalyzer.getLoopsInnerFirst())
+            processLoop(header);
+    }
+
+    private LinkedList<Operand> getOperands(IRInstruction inst) {
+        LinkedList<Operand> operands = new LinkedList<>();
+        if(inst instanceof Move) {
+            operands.add(((Move) inst).dest);
+            operands.add(((Move) inst).src);
+        } else if(inst instanceof BinaryInst) {
+            operands.add(((BinaryInst) inst).dest);
+            operands.add(((BinaryInst) inst).src);
+        } else if(inst instanceof UnaryInst) {
+            operands.add(((UnaryInst) inst).dest);
+        } else if(inst instanceof CJump) {
+            operands.add(((CJump) inst).src1);
+            operands.add(((CJump) inst).src2);
+        }
+        return operands;
+    }
+}
@@ -0,0 +1,196 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+import Mstar.IR.RegisterSet;
+
+import java.util.*;
+
+/*
+    fold the memory accesses left by the register allocator into the instructions using them:
+        mov r, [m]; add x, r                ->  add x, [m]
+        mov r, [m]; cmp r, x                ->  cmp [m], x
+        mov r, [m]; mov x, r                ->  mov x, [m]
+        mov r, [m]; add r, x; mov [m], r    ->  add [m], x
+    when r is dead after the folded instruction.
+    an x86 instruction takes at most one memory operand, so the other operand must not be a Memory.
+    it runs after the allocation, so the liveness here is on PhysicalRegisters.
+ */
+public class MemoryOperandFolder {
+    private IRProgram irProgram;
+    private HashMap<PhysicalRegister, Integer> registerIndex;
+    private HashMap<IRInstruction, Long> liveAfter;
+
+    public MemoryOperandFolder(IRProgram irProgram) {
+        this.irProgram = irProgram;
+        this.registerIndex = new HashMap<>();
+        for(PhysicalRegister pr : RegisterSet.allRegs)
+            registerIndex.put(pr, registerIndex.size());
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    private PhysicalRegister getPhysical(Register reg) {
+        if(reg instanceof VirtualRegister)
+            return ((VirtualRegister) reg).allocatedPhysicalRegister;
+        return (PhysicalRegister) reg;
+    }
+
+    private long toMask(Collection<Register> regs) {
+        long mask = 0;
+        for(Register reg : regs)
+            mask |= 1L << registerIndex.get(getPhysical(reg));
+        return mask;
+    }
+
+    private long trans(IRInstruction inst, long live) {
+        return (live & ~toMask(inst.getDefRegs())) | toMask(inst.getUseRegs());
+    }
+
+    private void calcLiveAfter(Function function) {
+        HashMap<BasicBlock, Long> liveIn = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks)
+            liveIn.put(bb, 0L);
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(BasicBlock bb : function.basicblocks) {
+                long live = 0;
+                for(BasicBlock succ : bb.successors)
+                    live |= liveIn.get(succ);
+                for(IRInstruction inst = bb.tail; inst != null; inst = inst.prev)
+                    live = trans(inst, live);
+                if(live != liveIn.get(bb)) {
+                    liveIn.put(bb, live);
+                    changed = true;
+                }
+            }
+        }
+        liveAfter = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks) {
+            long live = 0;
+            for(BasicBlock succ : bb.successors)
+                live |= liveIn.get(succ);
+            for(IRInstruction inst = bb.tail; inst != null; inst = inst.prev) {
+                liveAfter.put(inst, live);
+                live = trans(inst, live);
+            }
+        }
+    }
+
+    //  the number of times inst refers to pr, including the implicit ones
+    private int countReferences(IRInstruction inst, PhysicalRegister pr) {
+        int count = 0;
+        for(Register reg : inst.getUseRegs()) {
+            if(getPhysical(reg) == pr)
+                count++;
+        }
+        for(Register reg : inst.getDefRegs()) {
+            if(getPhysical(reg) == pr)
+                count++;
+        }
+        return count;
+    }
+
+    private boolean isDeadAfter(IRInstruction inst, PhysicalRegister pr) {
+        return (liveAfter.get(inst) & (1L << registerIndex.get(pr))) == 0;
+    }
+
+    private boolean isFoldableOp(BinaryInst.BinaryOp op) {
+        return op != BinaryInst.BinaryOp.SAL && op != BinaryInst.BinaryOp.SAR;
+    }
+
+    //  mov r, [m]; inst  ->  inst with [m] in the place of r
+    private boolean foldLoad(Move load, IRInstruction inst) {
+        PhysicalRegister r = (PhysicalRegister) load.dest;
+        Memory memory = (Memory) load.src;
+        if(countReferences(inst, r) != 1 || !isDeadAfter(inst, r))
+            return false;
+        if(inst instanceof BinaryInst) {
+            BinaryInst binaryInst = (BinaryInst) inst;
+            if(binaryInst.src != r || binaryInst.dest instanceof Memory || !isFoldableOp(binaryInst.op))
+                return false;
+            binaryInst.src = memory;
+        } else if(inst instanceof CJump) {
+            CJump cJump = (CJump) inst;
+            if(cJump.src1 == r && !(cJump.src2 instanceof Memory))
+                cJump.src1 = memory;
+            else if(cJump.src2 == r && cJump.src1 instanceof Register)
+                cJump.src2 = memory;
+            else
+                return false;
+        } else if(inst instanceof Move) {
+            Move move = (Move) inst;
+            if(move.src != r || !(move.dest instanceof Register))
+                return false;
+            move.src = memory;
+        } else if(inst instanceof Push) {
+            Push push = (Push) inst;
+            if(push.src != r)
+                return false;
+            push.src = memory;
+        } else {
+            return false;
+        }
+        load.remove();
+        return true;
+    }
+
+    //  mov r, [m]; op r, x; mov [m], r  ->  op [m], x
+    private boolean foldLoadAndStore(Move load, IRInstruction inst) {
+        PhysicalRegister r = (PhysicalRegister) load.dest;
+        Memory memory = (Memory) load.src;
+        if(!(memory instanceof StackSlot) || !(inst.next instanceof Move))
+            return false;
+        Move store = (Move) inst.next;
+        if(store.dest != memory || store.src != r || !isDeadAfter(store, r))
+            return false;
+        if(inst instanceof BinaryInst) {
+            BinaryInst binaryInst = (BinaryInst) inst;
+            if(binaryInst.dest != r || binaryInst.src instanceof Memory || binaryInst.src == r)
+                return false;
+            switch(binaryInst.op) {
+                case ADD: case SUB: case AND: case OR: case XOR:
+                    break;
+                default:
+                    return false;
+            }
+            binaryInst.dest = memory;
+        } else if(inst instanceof UnaryInst) {
+            UnaryInst unaryInst = (UnaryInst) inst;
+            if(unaryInst.dest != r)
+                return false;
+            unaryInst.dest = memory;
+        } else {
+            return false;
+        }
+        load.remove();
+        store.remove();
+        return true;
+    }
+
+    private void processFunction(Function function) {
+        calcLiveAfter(function);
+        for(BasicBlock bb : function.basicblocks) {
+            IRInstruction inst = bb.head;
+            while(inst != null) {
+                IRInstruction next = inst.next;
+                if(inst instanceof Move && ((Move) inst).dest instanceof PhysicalRegister
+                        && ((Move) inst).src instanceof Memory && next != null) {
+                    Move load = (Move) inst;
+                    if(foldLoadAndStore(load, next) || foldLoad(load, next)) {
+                        inst = next;
+                        continue;
+                    }
+                }
+                inst = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,519 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+
+import java.util.*;
+
+import static Mstar.IR.RegisterSet.vrax;
+import static Mstar.IR.RegisterSet.vrdx;
+
+/*
+    partial redundancy elimination by lazy code motion (Knoop, Ruthing and Steffen),
+    on the IR after it leaves SSA form, with the four dataflow passes of the dragon book:
+        anticipated, (will be) available  ->  earliest placement
+        postponable                       ->  latest placement
+        used                              ->  only keep the temporaries which are read later
+    an expression is computed into a temporary h at the latest placements, and every computation of
+    it at the beginning of a block (before any operand is redefined) becomes "mov dest, h".
+    an expression is only placed where it is anticipated, so no path computes it more often than before.
+    the edges from a block with several successors to a block with several predecessors are split first,
+    the new blocks which get nothing are removed again.
+
+    the expressions are the pure computations on plain virtual registers and immediates:
+        mov t, x; op t, y        (ADD, SUB, AND, OR, XOR, and SAL, SAR by an immediate)
+        mov t, x; neg/not t
+        mov vrax, x; imul y; mov t, vrax      (only placed where rax and rdx are free)
+        lea t, [mem]
+ */
+public class PartialRedundancyEliminator {
+    private static class Expression {
+        Object[] items;
+
+        Expression(Object... items) {
+            this.items = items;
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(items);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Expression && Arrays.equals(items, ((Expression) obj).items);
+        }
+    }
+
+    private static class Computation {
+        int expression;
+        LinkedList<IRInstruction> insts = new LinkedList<>();
+        VirtualRegister dest;
+        LinkedList<Register> operands = new LinkedList<>();
+    }
+
+    private IRProgram irProgram;
+    private LivenessAnalyzer livenessAnalyzer;
+
+    //  for process function
+    private Function function;
+    private HashMap<Expression, Integer> expressionIndex;
+    private ArrayList<Computation> templates;
+    private HashMap<Register, BitSet> expressionsUsing;
+    private HashMap<BasicBlock, LinkedList<Computation>> upwardExposed;
+    private HashMap<BasicBlock, BitSet> eUse;
+    private HashMap<BasicBlock, BitSet> eKill;
+    private int expressionCount;
+
+    public PartialRedundancyEliminator(IRProgram irProgram) {
+        this.irProgram = irProgram;
+        this.livenessAnalyzer = new LivenessAnalyzer();
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    private boolean isPlain(Operand operand) {
+        return SSAConstructor.isRenamable(operand);
+    }
+
+    private boolean isPlainOrImmediate(Operand operand) {
+        return isPlain(operand) || operand instanceof Immediate;
+    }
+
+    private Object getKey(Operand operand) {
+        if(operand instanceof Immediate)
+            return ((Immediate) operand).value;
+        return operand;
+    }
+
+    private boolean isCommutative(Object op) {
+        return op == BinaryInst.BinaryOp.ADD || op == BinaryInst.BinaryOp.MUL || op == BinaryInst.BinaryOp.AND
+                || op == BinaryInst.BinaryOp.OR || op == BinaryInst.BinaryOp.XOR;
+    }
+
+    //  the order of the operands of a commutative operation does not matter
+    private Expression getBinaryExpression(BinaryInst.BinaryOp op, Operand lhs, Operand rhs) {
+        Object l = getKey(lhs);
+        Object r = getKey(rhs);
+        if(isCommutative(op) && getRank(l) > getRank(r)) {
+            Object temp = l;
+            l = r;
+            r = temp;
+        }
+        return new Expression(op, l, r);
+    }
+
+    private long getRank(Object key) {
+        if(key instanceof Integer)
+            return Long.MAX_VALUE;
+        return ((VirtualRegister) key).id;
+    }
+
+    private void addOperand(Computation computation, Operand operand) {
+        if(operand instanceof Register && !computation.operands.contains(operand))
+            computation.operands.add((Register) operand);
+    }
+
+    //  the computation starting at inst, null if there is none
+    private Computation matchComputation(IRInstruction inst) {
+        Computation computation = new Computation();
+        Expression expression;
+        if(inst instanceof Lea) {
+            Lea lea = (Lea) inst;
+            Memory src = lea.src;
+            if(src instanceof StackSlot || !isPlain(lea.dest) || (src.base != null && !isPlain(src.base)) || (src.index != null && !isPlain(src.index)))
+                return null;
+            if(src.constant != null && !(src.constant instanceof Immediate))
+                return null;
+            expression = new Expression("lea", src.base, src.index, src.scale, src.constant == null ? null : getKey(src.constant));
+            computation.insts.add(inst);
+            computation.dest = (VirtualRegister) lea.dest;
+            addOperand(computation, src.base);
+            addOperand(computation, src.index);
+        } else if(inst instanceof Move && ((Move) inst).dest == vrax) {
+            Operand lhs = ((Move) inst).src;
+            if(!isPlainOrImmediate(lhs) || !(inst.next instanceof BinaryInst) || !(inst.next.next instanceof Move))
+                return null;
+            BinaryInst multiply = (BinaryInst) inst.next;
+            Move result = (Move) inst.next.next;
+            if(multiply.op != BinaryInst.BinaryOp.MUL || multiply.dest != null || !isPlainOrImmediate(multiply.src))
+                return null;
+            if(result.src != vrax || !isPlain(result.dest) || result.dest == lhs || result.dest == multiply.src)
+                return null;
+            expression = getBinaryExpression(BinaryInst.BinaryOp.MUL, lhs, multiply.src);
+            computation.insts.add(inst);
+            computation.insts.add(multiply);
+            computation.insts.add(result);
+            computation.dest = (VirtualRegister) result.dest;
+            addOperand(computation, lhs);
+            addOperand(computation, multiply.src);
+        } else if(inst instanceof Move) {
+            Move move = (Move) inst;
+            if(!isPlain(move.dest) || !isPlainOrImmediate(move.src) || move.dest == move.src)
+                return null;
+            if(inst.next instanceof BinaryInst && ((BinaryInst) inst.next).dest == move.dest) {
+                BinaryInst binaryInst = (BinaryInst) inst.next;
+                switch(binaryInst.op) {
+                    case ADD: case SUB: case AND: case OR: case XOR:
+                        if(!isPlainOrImmediate(binaryInst.src))
+                            return null;
+                        break;
+                    case SAL: case SAR:
+                        if(!(binaryInst.src instanceof Immediate))
+                            return null;
+                        break;
+                    default:
+                        return null;
+                }
+                if(binaryInst.src == move.dest)
+                    return null;
+                expression = getBinaryExpression(binaryInst.op, move.src, binaryInst.src);
+                addOperand(computation, binaryInst.src);
+            } else if(inst.next instanceof UnaryInst && ((UnaryInst) inst.next).dest == move.dest) {
+                UnaryInst.UnaryOp op = ((UnaryInst) inst.next).op;
+                if(op != UnaryInst.UnaryOp.NEG && op != UnaryInst.UnaryOp.NOT)
+                    return null;
+                expression = new Expression(op, getKey(move.src));
+            } else {
+                return null;
+            }
+            computation.insts.add(inst);
+            computation.insts.add(inst.next);
+            computation.dest = (VirtualRegister) move.dest;
+            addOperand(computation, move.src);
+        } else {
+            return null;
+        }
+        Integer index = expressionIndex.get(expression);
+        if(index == null) {
+            index = expressionCount++;
+            expressionIndex.put(expression, index);
+            templates.add(computation);
+            for(Register operand : computation.operands)
+                expressionsUsing.computeIfAbsent(operand, k -> new BitSet()).set(index);
+        }
+        computation.expression = index;
+        return computation;
+    }
+
+    private void collectComputations() {
+        expressionIndex = new HashMap<>();
+        templates = new ArrayList<>();
+        expressionsUsing = new HashMap<>();
+        upwardExposed = new HashMap<>();
+        eUse = new HashMap<>();
+        eKill = new HashMap<>();
+        expressionCount = 0;
+        for(BasicBlock bb : function.basicblocks) {
+            LinkedList<Computation> computations = new LinkedList<>();
+            HashSet<Register> defined = new HashSet<>();
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                Computation computation = matchComputation(inst);
+                if(computation != null) {
+                    boolean exposed = true;
+                    for(Register operand : computation.operands)
+                        exposed &= !defined.contains(operand);
+                    if(exposed)
+                        computations.add(computation);
+                    for(IRInstruction computationInst : computation.insts)
+                        defined.addAll(computationInst.getDefRegs());
+                    inst = computation.insts.getLast();
+                    continue;
+                }
+                defined.addAll(inst.getDefRegs());
+            }
+            upwardExposed.put(bb, computations);
+            BitSet use = new BitSet();
+            for(Computation computation : computations)
+                use.set(computation.expression);
+            eUse.put(bb, use);
+            eKill.put(bb, new BitSet());
+            for(Register reg : defined) {
+                if(expressionsUsing.containsKey(reg))
+                    eKill.get(bb).or(expressionsUsing.get(reg));
+            }
+        }
+        //  the expressions first seen after the block was scanned
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                for(Register reg : inst.getDefRegs()) {
+                    if(expressionsUsing.containsKey(reg))
+                        eKill.get(bb).or(expressionsUsing.get(reg));
+                }
+            }
+        }
+    }
+
+    private BitSet full() {
+        BitSet bitSet = new BitSet();
+        bitSet.set(0, expressionCount);
+        return bitSet;
+    }
+
+    private BitSet intersectSuccessors(BasicBlock bb, HashMap<BasicBlock, BitSet> in) {
+        if(bb.successors.isEmpty())
+            return new BitSet();
+        BitSet result = full();
+        for(BasicBlock succ : bb.successors)
+            result.and(in.get(succ));
+        return result;
+    }
+
+    private BitSet intersectPredecessors(BasicBlock bb, HashMap<BasicBlock, BitSet> out) {
+        if(bb == function.enterBB || bb.frontiers.isEmpty())
+            return new BitSet();
+        BitSet result = full();
+        for(BasicBlock pred : bb.frontiers)
+            result.and(out.get(pred));
+        return result;
+    }
+
+    private HashMap<BasicBlock, BitSet> calcAnticipated() {
+        HashMap<BasicBlock, BitSet> in = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks)
+            in.put(bb, full());
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(int i = function.reversePostOrder.size() - 1; i >= 0; i--) {
+                BasicBlock bb = function.reversePostOrder.get(i);
+                BitSet newIn = intersectSuccessors(bb, in);
+                newIn.andNot(eKill.get(bb));
+                newIn.or(eUse.get(bb));
+                if(!newIn.equals(in.get(bb))) {
+                    in.put(bb, newIn);
+                    changed = true;
+                }
+            }
+        }
+        return in;
+    }
+
+    private HashMap<BasicBlock, BitSet> calcAvailable(HashMap<BasicBlock, BitSet> anticipatedIn) {
+        HashMap<BasicBlock, BitSet> in = new HashMap<>();
+        HashMap<BasicBlock, BitSet> out = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks) {
+            in.put(bb, new BitSet());
+            out.put(bb, full());
+        }
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(BasicBlock bb : function.reversePostOrder) {
+                BitSet newIn = intersectPredecessors(bb, out);
+                in.put(bb, newIn);
+                BitSet newOut = (BitSet) newIn.clone();
+                newOut.or(anticipatedIn.get(bb));
+                newOut.andNot(eKill.get(bb));
+                if(!newOut.equals(out.get(bb))) {
+                    out.put(bb, newOut);
+                    changed = true;
+                }
+            }
+        }
+        return in;
+    }
+
+    private HashMap<BasicBlock, BitSet> calcPostponable(HashMap<BasicBlock, BitSet> earliest) {
+        HashMap<BasicBlock, BitSet> in = new HashMap<>();
+        HashMap<BasicBlock, BitSet> out = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks) {
+            in.put(bb, new BitSet());
+            out.put(bb, full());
+        }
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(BasicBlock bb : function.reversePostOrder) {
+                BitSet newIn = intersectPredecessors(bb, out);
+                in.put(bb, newIn);
+                BitSet newOut = (BitSet) newIn.clone();
+                newOut.or(earliest.get(bb));
+                newOut.andNot(eUse.get(bb));
+                if(!newOut.equals(out.get(bb))) {
+                    out.put(bb, newOut);
+                    changed = true;
+                }
+            }
+        }
+        return in;
+    }
+
+    private HashMap<BasicBlock, BitSet> calcUsedOut(HashMap<BasicBlock, BitSet> latest) {
+        HashMap<BasicBlock, BitSet> in = new HashMap<>();
+        HashMap<BasicBlock, BitSet> out = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks) {
+            in.put(bb, new BitSet());
+            out.put(bb, new BitSet());
+        }
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(int i = function.reversePostOrder.size() - 1; i >= 0; i--) {
+                BasicBlock bb = function.reversePostOrder.get(i);
+                BitSet newOut = new BitSet();
+                for(BasicBlock succ : bb.successors)
+                    newOut.or(in.get(succ));
+                out.put(bb, newOut);
+                BitSet newIn = (BitSet) newOut.clone();
+                newIn.or(eUse.get(bb));
+                newIn.andNot(latest.get(bb));
+                if(!newIn.equals(in.get(bb))) {
+                    in.put(bb, newIn);
+                    changed = true;
+                }
+            }
+        }
+        return out;
+    }
+
+    private LinkedList<BasicBlock> splitCriticalEdges() {
+        LinkedList<BasicBlock> splits = new LinkedList<>();
+        for(BasicBlock pred : new ArrayList<>(function.basicblocks)) {
+            if(!(pred.tail instanceof CJump))
+                continue;
+            CJump cJump = (CJump) pred.tail;
+            if(cJump.thenBB == cJump.elseBB)
+                continue;
+            for(BasicBlock succ : new BasicBlock[]{cJump.thenBB, cJump.elseBB}) {
+                if(new HashSet<>(succ.frontiers).size() < 2)
+                    continue;
+                BasicBlock middle = new BasicBlock(function, "split");
+                middle.append(new Jump(middle, succ));
+                if(cJump.thenBB == succ)
+                    cJump.thenBB = middle;
+                else
+                    cJump.elseBB = middle;
+                splits.add(middle);
+            }
+        }
+        function.finishBuild();
+        return splits;
+    }
+
+    private void removeEmptySplits(LinkedList<BasicBlock> splits) {
+        for(BasicBlock middle : splits) {
+            if(middle.head != middle.tail)
+                continue;
+            BasicBlock succ = ((Jump) middle.tail).targetBB;
+            for(BasicBlock pred : middle.frontiers) {
+                CJump cJump = (CJump) pred.tail;
+                if(cJump.thenBB == middle)
+                    cJump.thenBB = succ;
+                if(cJump.elseBB == middle)
+                    cJump.elseBB = succ;
+            }
+            function.basicblocks.remove(middle);
+        }
+    }
+
+    //  h = expression at the beginning of bb
+    private void insertComputation(BasicBlock bb, Computation template, VirtualRegister temporary) {
+        IRInstruction first = template.insts.getFirst();
+        IRInstruction last = template.insts.getLast();
+        LinkedList<IRInstruction> insts = new LinkedList<>();
+        if(first instanceof Lea) {
+            insts.add(new Lea(bb, temporary, ((Lea) first).src.copy()));
+        } else if(template.insts.size() == 3) {
+            insts.add(new Move(bb, vrax, ((Move) first).src));
+            insts.add(new BinaryInst(bb, BinaryInst.BinaryOp.MUL, null, ((BinaryInst) first.next).src));
+            insts.add(new Move(bb, temporary, vrax));
+        } else if(last instanceof BinaryInst) {
+            insts.add(new Move(bb, temporary, ((Move) first).src));
+            insts.add(new BinaryInst(bb, ((BinaryInst) last).op, temporary, ((BinaryInst) last).src));
+        } else {
+            insts.add(new Move(bb, temporary, ((Move) first).src));
+            insts.add(new UnaryInst(bb, ((UnaryInst) last).op, temporary));
+        }
+        IRInstruction head = bb.head;
+        for(IRInstruction inst : insts)
+            head.prepend(inst);
+    }
+
+    private void processFunction(Function function) {
+        this.function = function;
+        LinkedList<BasicBlock> splits = splitCriticalEdges();
+        collectComputations();
+        if(expressionCount == 0) {
+            removeEmptySplits(splits);
+            function.finishBuild();
+            return;
+        }
+
+        HashMap<BasicBlock, BitSet> anticipatedIn = calcAnticipated();
+        HashMap<BasicBlock, BitSet> availableIn = calcAvailable(anticipatedIn);
+        HashMap<BasicBlock, BitSet> earliest = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks) {
+            BitSet bitSet = (BitSet) anticipatedIn.get(bb).clone();
+            bitSet.andNot(availableIn.get(bb));
+            earliest.put(bb, bitSet);
+        }
+        HashMap<BasicBlock, BitSet> postponableIn = calcPostponable(earliest);
+        HashMap<BasicBlock, BitSet> latest = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks) {
+            BitSet candidate = (BitSet) earliest.get(bb).clone();
+            candidate.or(postponableIn.get(bb));
+            BitSet notLaterInAllSuccessors = full();
+            for(BasicBlock succ : bb.successors) {
+                BitSet succCandidate = (BitSet) earliest.get(succ).clone();
+                succCandidate.or(postponableIn.get(succ));
+                notLaterInAllSuccessors.and(succCandidate);
+            }
+            if(bb.successors.isEmpty())
+                notLaterInAllSuccessors = full();
+            BitSet bitSet = full();
+            bitSet.andNot(notLaterInAllSuccessors);
+            bitSet.or(eUse.get(bb));
+            bitSet.and(candidate);
+            latest.put(bb, bitSet);
+        }
+        HashMap<BasicBlock, BitSet> usedOut = calcUsedOut(latest);
+
+        //  the blocks where each expression is placed, an imul can not be placed where rax or rdx is live
+        livenessAnalyzer.getLiveOut(function);
+        HashMap<Integer, LinkedList<BasicBlock>> placements = new HashMap<>();
+        BitSet rejected = new BitSet();
+        for(BasicBlock bb : function.basicblocks) {
+            BitSet insert = (BitSet) latest.get(bb).clone();
+            insert.and(usedOut.get(bb));
+            for(int e = insert.nextSetBit(0); e >= 0; e = insert.nextSetBit(e + 1)) {
+                placements.computeIfAbsent(e, k -> new LinkedList<>()).add(bb);
+                BitSet liveIn = livenessAnalyzer.liveIn.get(bb);
+                if(templates.get(e).insts.size() == 3 && (liveIn.get(livenessAnalyzer.getIndex(vrax))
+                        || liveIn.get(livenessAnalyzer.getIndex(vrdx))))
+                    rejected.set(e);
+            }
+        }
+
+        HashMap<Integer, VirtualRegister> temporaries = new HashMap<>();
+        for(int e : placements.keySet()) {
+            if(rejected.get(e))
+                continue;
+            VirtualRegister temporary = new VirtualRegister("");
+            temporaries.put(e, temporary);
+            for(BasicBlock bb : placements.get(e))
+                insertComputation(bb, templates.get(e), temporary);
+        }
+        for(BasicBlock bb : function.basicblocks) {
+            BitSet kept = (BitSet) latest.get(bb).clone();
+            kept.andNot(usedOut.get(bb));
+            for(Computation computation : upwardExposed.get(bb)) {
+                int e = computation.expression;
+                VirtualRegister temporary = temporaries.get(e);
+                if(kept.get(e) || temporary == null)
+                    continue;
+                computation.insts.getFirst().prepend(new Move(bb, computation.dest, temporary));
+                for(IRInstruction inst : computation.insts)
+                    inst.remove();
+            }
+        }
+        removeEmptySplits(splits);
+        function.finishBuild();
+    }
+}
@@ -0,0 +1,227 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+
+import java.util.*;
+
+/*
+    translate the functions into pruned SSA form (Cytron et al.):
+        phi functions are placed on the iterated dominance frontiers of the definitions,
+        but only where the register is live in, then the registers are renamed along the dominator tree.
+    only the plain virtual registers are renamed, the precolored registers and the global variables
+    (which have spillPlace) keep their names.
+
+    BinaryInst and UnaryInst read and write their dest, so the definition of an SSA register is a
+    "definition chain" inside one BasicBlock: a Move (or Lea, Pop) followed by the updates
+        mov v1, a; add v1, b; sal v1, 2
+    no other instruction refers to v1 before the chain ends, and the value of v1 is the one after
+    the last update. an update of a register whose chain has ended, or which is defined by a Phi,
+    gets a new name and a copy:
+        inc v1  ->  mov v2, v1; inc v2
+ */
+public class SSAConstructor {
+    private IRProgram irProgram;
+    private LivenessAnalyzer livenessAnalyzer;
+
+    //  for process function
+    private HashMap<VirtualRegister, LinkedList<VirtualRegister>> versions;
+    private HashMap<Phi, VirtualRegister> phiOrigin;
+
+    public SSAConstructor(IRProgram irProgram) {
+        this.irProgram = irProgram;
+        this.livenessAnalyzer = new LivenessAnalyzer();
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    public static boolean isRenamable(Operand operand) {
+        return operand instanceof VirtualRegister && ((VirtualRegister) operand).allocatedPhysicalRegister == null
+                && ((VirtualRegister) operand).spillPlace == null;
+    }
+
+    //  whether inst reads and writes the same renamable register
+    public static boolean isUpdate(IRInstruction inst) {
+        if(inst instanceof BinaryInst)
+            return isRenamable(((BinaryInst) inst).dest);
+        if(inst instanceof UnaryInst)
+            return isRenamable(((UnaryInst) inst).dest);
+        return false;
+    }
+
+    public static LinkedList<VirtualRegister> getUses(IRInstruction inst) {
+        LinkedList<VirtualRegister> regs = new LinkedList<>();
+        LinkedList<Register> used = inst instanceof Call ? ((Call) inst).getCallUsed() : inst.getUseRegs();
+        for(Register reg : used) {
+            if(isRenamable(reg) && !regs.contains(reg))
+                regs.add((VirtualRegister) reg);
+        }
+        return regs;
+    }
+
+    public static LinkedList<VirtualRegister> getDefs(IRInstruction inst) {
+        LinkedList<VirtualRegister> regs = new LinkedList<>();
+        for(Register reg : inst.getDefRegs()) {
+            if(isRenamable(reg))
+                regs.add((VirtualRegister) reg);
+        }
+        return regs;
+    }
+
+    /*
+        the definition chain of every SSA register defined by a non-Phi instruction,
+        in the order of the instructions, the first one is the Move (or Lea, Pop) starting it
+     */
+    public static HashMap<VirtualRegister, LinkedList<IRInstruction>> getDefinitionChains(Function function) {
+        HashMap<VirtualRegister, LinkedList<IRInstruction>> chains = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(inst instanceof Phi)
+                    continue;
+                for(VirtualRegister vr : getDefs(inst)) {
+                    if(isUpdate(inst) && chains.containsKey(vr))
+                        chains.get(vr).add(inst);
+                    else
+                        chains.computeIfAbsent(vr, k -> new LinkedList<>()).add(inst);
+                }
+            }
+        }
+        return chains;
+    }
+
+    private void insertPhis(Function function) {
+        livenessAnalyzer.getLiveOut(function);
+        HashMap<VirtualRegister, HashSet<BasicBlock>> defBlocks = new HashMap<>();
+        for(BasicBlock bb : function.reversePostOrder) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                for(VirtualRegister vr : getDefs(inst))
+                    defBlocks.computeIfAbsent(vr, k -> new HashSet<>()).add(bb);
+            }
+        }
+
+        phiOrigin = new HashMap<>();
+        for(VirtualRegister vr : defBlocks.keySet()) {
+            int index = livenessAnalyzer.getIndex(vr);
+            HashSet<BasicBlock> hasPhi = new HashSet<>();
+            LinkedList<BasicBlock> worklist = new LinkedList<>(defBlocks.get(vr));
+            HashSet<BasicBlock> inWorklist = new HashSet<>(worklist);
+            while(!worklist.isEmpty()) {
+                BasicBlock bb = worklist.poll();
+                for(BasicBlock frontier : bb.dominanceFrontier) {
+                    if(hasPhi.contains(frontier) || !livenessAnalyzer.liveIn.get(frontier).get(index))
+                        continue;
+                    Phi phi = new Phi(frontier, vr);
+                    frontier.prepend(phi);
+                    phiOrigin.put(phi, vr);
+                    hasPhi.add(frontier);
+                    if(inWorklist.add(frontier))
+                        worklist.add(frontier);
+                }
+            }
+        }
+    }
+
+    private VirtualRegister getCurrent(VirtualRegister vr) {
+        LinkedList<VirtualRegister> stack = versions.get(vr);
+        //  a use without any definition reaching it keeps the original name
+        return stack == null || stack.isEmpty() ? vr : stack.peek();
+    }
+
+    private VirtualRegister newVersion(VirtualRegister vr, LinkedList<VirtualRegister> pushed) {
+        VirtualRegister version = new VirtualRegister(vr.hint);
+        versions.computeIfAbsent(vr, k -> new LinkedList<>()).push(version);
+        pushed.add(vr);
+        return version;
+    }
+
+    private LinkedList<VirtualRegister> renameBasicBlock(BasicBlock bb) {
+        LinkedList<VirtualRegister> pushed = new LinkedList<>();
+        //  the registers whose definition chain is still open in this block
+        HashSet<VirtualRegister> openChains = new HashSet<>();
+        for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+            if(inst instanceof Phi) {
+                Phi phi = (Phi) inst;
+                phi.dest = newVersion(phiOrigin.get(phi), pushed);
+                continue;
+            }
+            VirtualRegister updated = isUpdate(inst) ? (VirtualRegister) inst.getDefRegs().getFirst() : null;
+            HashMap<Register, Register> renameMap = new HashMap<>();
+            for(VirtualRegister vr : getUses(inst)) {
+                VirtualRegister current = getCurrent(vr);
+                renameMap.put(vr, current);
+                if(vr != updated)
+                    openChains.remove(current);
+            }
+            inst.renameUseReg(renameMap);
+
+            if(updated != null) {
+                VirtualRegister current = getCurrent(updated);
+                if(!openChains.contains(current)) {
+                    VirtualRegister version = newVersion(updated, pushed);
+                    inst.prepend(new Move(bb, version, current));
+                    renameMap.clear();
+                    renameMap.put(current, version);
+                    inst.renameDefReg(renameMap);
+                    openChains.add(version);
+                }
+            } else {
+                renameMap.clear();
+                for(VirtualRegister vr : getDefs(inst)) {
+                    VirtualRegister version = newVersion(vr, pushed);
+                    renameMap.put(vr, version);
+                    openChains.add(version);
+                }
+                inst.renameDefReg(renameMap);
+            }
+        }
+
+        for(BasicBlock succ : bb.successors) {
+            for(IRInstruction inst = succ.head; inst instanceof Phi; inst = inst.next) {
+                Phi phi = (Phi) inst;
+                phi.paths.put(bb, getCurrent(phiOrigin.get(phi)));
+            }
+        }
+        return pushed;
+    }
+
+    /*
+        walk the dominator tree without recursion, the versions pushed in a block
+        are popped after all the blocks it dominates are renamed.
+     */
+    private void rename(Function function) {
+        versions = new HashMap<>();
+        LinkedList<BasicBlock> stack = new LinkedList<>();
+        LinkedList<Iterator<BasicBlock>> children = new LinkedList<>();
+        LinkedList<LinkedList<VirtualRegister>> pushedStack = new LinkedList<>();
+        stack.push(function.enterBB);
+        children.push(function.enterBB.dominatorTreeChildren.iterator());
+        pushedStack.push(renameBasicBlock(function.enterBB));
+        while(!stack.isEmpty()) {
+            Iterator<BasicBlock> iterator = children.peek();
+            if(iterator.hasNext()) {
+                BasicBlock child = iterator.next();
+                stack.push(child);
+                children.push(child.dominatorTreeChildren.iterator());
+                pushedStack.push(renameBasicBlock(child));
+            } else {
+                stack.pop();
+                children.pop();
+                for(VirtualRegister vr : pushedStack.pop())
+                    versions.get(vr).pop();
+            }
+        }
+    }
+
+    private void processFunction(Function function) {
+        function.removeUnreachableBasicBlocks();
+        function.calcDominatorTree();
+        insertPhis(function);
+        rename(function);
+    }
+}
@@ -0,0 +1,98 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+
+import java.util.*;
+
+/*
+    translate the functions out of SSA form:
+    the phi functions of a BasicBlock become a parallel copy at the end of each predecessor.
+    a predecessor ending with CJump has another successor (critical edge) or reads registers
+    in its terminator, so a new BasicBlock is inserted on that edge to hold the copies.
+    the parallel copy is sequentialized, a cycle like (a <- b, b <- a) is broken by a temporary.
+ */
+public class SSADestructor {
+    private IRProgram irProgram;
+
+    public SSADestructor(IRProgram irProgram) {
+        this.irProgram = irProgram;
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    private BasicBlock splitEdge(Function function, BasicBlock pred, BasicBlock bb) {
+        BasicBlock middle = new BasicBlock(function, "split");
+        middle.append(new Jump(middle, bb));
+        CJump cJump = (CJump) pred.tail;
+        if(cJump.thenBB == bb)
+            cJump.thenBB = middle;
+        if(cJump.elseBB == bb)
+            cJump.elseBB = middle;
+        return middle;
+    }
+
+    //  emit the copies dest[i] <- src[i] as if they happened at the same time
+    private void sequentialize(LinkedList<VirtualRegister> dests, LinkedList<Operand> srcs, IRInstruction before) {
+        for(int i = 0; i < dests.size(); i++) {
+            if(dests.get(i) == srcs.get(i)) {
+                dests.remove(i);
+                srcs.remove(i);
+                i--;
+            }
+        }
+        while(!dests.isEmpty()) {
+            boolean emitted = false;
+            for(int i = 0; i < dests.size(); i++) {
+                //  a copy can be emitted when no other pending copy reads its dest
+                if(srcs.contains(dests.get(i)))
+                    continue;
+                before.prepend(new Move(before.bb, dests.get(i), srcs.get(i)));
+                dests.remove(i);
+                srcs.remove(i);
+                emitted = true;
+                break;
+            }
+            if(!emitted) {
+                VirtualRegister dest = dests.getFirst();
+                VirtualRegister temp = new VirtualRegister(dest.hint);
+                before.prepend(new Move(before.bb, temp, dest));
+                for(int i = 0; i < srcs.size(); i++) {
+                    if(srcs.get(i) == dest)
+                        srcs.set(i, temp);
+                }
+            }
+        }
+    }
+
+    private void processFunction(Function function) {
+        for(BasicBlock bb : new ArrayList<>(function.basicblocks)) {
+            LinkedList<Phi> phis = new LinkedList<>();
+            for(IRInstruction inst = bb.head; inst instanceof Phi; inst = inst.next)
+                phis.add((Phi) inst);
+            if(phis.isEmpty())
+                continue;
+            for(BasicBlock pred : new LinkedHashSet<>(bb.frontiers)) {
+                BasicBlock copyBB = pred.tail instanceof CJump ? splitEdge(function, pred, bb) : pred;
+                LinkedList<VirtualRegister> dests = new LinkedList<>();
+                LinkedList<Operand> srcs = new LinkedList<>();
+                for(Phi phi : phis) {
+                    if(!phi.paths.containsKey(pred))
+                        continue;
+                    dests.add(phi.dest);
+                    srcs.add(phi.paths.get(pred));
+                }
+                sequentialize(dests, srcs, copyBB.tail);
+            }
+            for(Phi phi : phis)
+                phi.remove();
+        }
+        function.finishBuild();
+    }
+}
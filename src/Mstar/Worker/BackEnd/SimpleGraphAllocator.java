@@ -1,23 +1,22 @@
 package Mstar.Worker.BackEnd;
 
+import Mstar.Config;
 import Mstar.IR.BasicBlock;
 import Mstar.IR.Function;
 import Mstar.IR.IRProgram;
-import Mstar.IR.Instruction.IRInstruction;
-import Mstar.IR.Instruction.Move;
+import Mstar.IR.Instruction.*;
 import Mstar.IR.Operand.*;
 import Mstar.IR.RegisterSet;
 import Mstar.Worker.BackEnd.LivenessAnalyzer.Graph;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.*;
 
 public class SimpleGraphAllocator {
     //  general
     private IRProgram irProgram;
     private IRPrinter irPrinter = new IRPrinter();
     private static LivenessAnalyzer livenessAnalyzer = new LivenessAnalyzer();
+    private LoopAnalyzer loopAnalyzer = new LoopAnalyzer();
     private LinkedList<PhysicalRegister> generalRegisters = new LinkedList<>();
     private int K;
 
@@ -33,12 +32,29 @@ public class SimpleGraphAllocator {
     }
 
     public void run() {
+        LinearScanAllocator linearScanAllocator = new LinearScanAllocator(irProgram);
         for(Function function : irProgram.functions) {
+            //  the interference graph of a huge function is too expensive, use linear scan instead
+            if(countVirtualRegisters(function) > Config.linearScanThreshold) {
+                linearScanAllocator.processFunction(function);
+                continue;
+            }
             this.function = function;
             processFunction();
         }
     }
 
+    private int countVirtualRegisters(Function function) {
+        HashSet<Register> registers = new HashSet<>();
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                registers.addAll(inst.getUseRegs());
+                registers.addAll(inst.getDefRegs());
+            }
+        }
+        return registers.size();
+    }
+
     private void showFunction(Function function) {
         Graph graph = new Graph();
 
@@ -51,25 +67,25 @@ public class SimpleGraphAllocator {
         System.err.println("Use and Define Set:");
         for(BasicBlock bb : function.reversePostOrder) {
             System.err.print(irPrinter.bbNames.get(bb) + ": ");
-            for(VirtualRegister reg : livenessAnalyzer.definedRegisters.get(bb))
+            for(VirtualRegister reg : livenessAnalyzer.toRegisters(livenessAnalyzer.definedRegisters.get(bb)))
                 System.err.print(irPrinter.varNames.get(reg) + " ");
             System.err.print(": ");
-            for(VirtualRegister reg : livenessAnalyzer.usedRegisters.get(bb))
+            for(VirtualRegister reg : livenessAnalyzer.toRegisters(livenessAnalyzer.usedRegisters.get(bb)))
                 System.err.print(irPrinter.varNames.get(reg) + " ");
             System.err.print("\n");
         }
         System.err.println("LiveOut Set:");
         for(BasicBlock bb : function.reversePostOrder) {
             System.err.print(irPrinter.bbNames.get(bb) + ": ");
-            for(VirtualRegister reg : livenessAnalyzer.liveOut.get(bb))
+            for(VirtualRegister reg : livenessAnalyzer.toRegisters(livenessAnalyzer.liveOut.get(bb)))
                 System.err.print(irPrinter.varNames.get(reg) + " ");
             System.err.print("\n");
         }
         System.err.println("Interference Graph:");
-        for(VirtualRegister reg : graph.getAllRegisters()) {
-            System.err.print(irPrinter.varNames.get(reg) + ": ");
-            for(VirtualRegister adjReg : graph.getAdjacents(reg)) {
-                System.err.print(irPrinter.varNames.get(adjReg) + " ");
+        for(int i = 0; i < graph.size(); i++) {
+            System.err.print(irPrinter.varNames.get(graph.getRegister(i)) + ": ");
+            for(int j : Arrays.copyOf(graph.getAdjacents(i), graph.getDegree(i))) {
+                System.err.print(irPrinter.varNames.get(graph.getRegister(j)) + " ");
             }
             System.err.print("\n");
         }
@@ -84,116 +100,718 @@ public class SimpleGraphAllocator {
         return ret;
     }
 
+    /*
+        Iterated register coalescing (George & Appel):
+        the move related registers are coalesced when the Briggs test (or the
+        George test, when one side is precolored) says it is conservative,
+        otherwise their moves are frozen and they are simplified as usual.
+        the moves between registers are taken from the move graph built by
+        getInferenceGraph, the moves between coalesced registers are removed
+        in replaceRegisers.
+     */
+    private static final int PRECOLORED = 0;
+    private static final int INITIAL = 1;
+    private static final int SIMPLIFY = 2;
+    private static final int FREEZE = 3;
+    private static final int SPILL = 4;
+    private static final int SPILLED = 5;
+    private static final int COALESCED = 6;
+    private static final int COLORED = 7;
+    private static final int SELECT = 8;
+
+    private static final int MOVE_WORKLIST = 0;
+    private static final int MOVE_ACTIVE = 1;
+    private static final int MOVE_COALESCED = 2;
+    private static final int MOVE_CONSTRAINED = 3;
+    private static final int MOVE_FROZEN = 4;
+
     //  for process function
     Function function;
-    Graph orignGraph;
     Graph graph;
-    HashSet<VirtualRegister> simplifyWorklist;
-    HashSet<VirtualRegister> spillWorklist;
+    Graph moveGraph;
+    int[] degree;
+    int[] state;
+    int[] alias;
+    PhysicalRegister[] color;
+    ArrayList<HashSet<Integer>> moveList;
+    ArrayList<int[]> moves;
+    int[] moveState;
+    ArrayDeque<Integer> simplifyWorklist;
+    ArrayDeque<Integer> freezeWorklist;
+    HashSet<Integer> spillWorklist;
+    ArrayDeque<Integer> worklistMoves;
+    LinkedList<Integer> selectStack;
     HashSet<VirtualRegister> spilledRegisers;
-    LinkedList<VirtualRegister> selectStack;
+    HashSet<VirtualRegister> spillTemporaries = new HashSet<>();
+    HashMap<VirtualRegister, Memory> splitFrom = new HashMap<>();
+    HashSet<VirtualRegister> unspillable = new HashSet<>();
+    HashSet<VirtualRegister> loopTemporaries = new HashSet<>();
+    double[] spillCost;
+    double[] memoryCost;
+    HashMap<VirtualRegister, Operand> rematerialization;
     HashMap<VirtualRegister, PhysicalRegister> colors;
 
+    private boolean isPrecolored(int n) {
+        return state[n] == PRECOLORED;
+    }
+
     private void init() {
-        simplifyWorklist = new HashSet<>();
+        int size = graph.size();
+        degree = graph.getDegrees();
+        state = new int[size];
+        alias = new int[size];
+        color = new PhysicalRegister[size];
+        moveList = new ArrayList<>();
+        moves = new ArrayList<>();
+        simplifyWorklist = new ArrayDeque<>();
+        freezeWorklist = new ArrayDeque<>();
         spillWorklist = new HashSet<>();
-        spilledRegisers = new HashSet<>();
+        worklistMoves = new ArrayDeque<>();
         selectStack = new LinkedList<>();
+        spilledRegisers = new HashSet<>();
         colors = new HashMap<>();
-        for(VirtualRegister vr : graph.getAllRegisters()) {
-            if(graph.getDegree(vr) < K)
-                simplifyWorklist.add(vr);
-            else
-                spillWorklist.add(vr);
+        for(int i = 0; i < size; i++) {
+            moveList.add(new HashSet<>());
+            alias[i] = i;
+            PhysicalRegister pr = graph.getRegister(i).allocatedPhysicalRegister;
+            if(pr != null) {
+                state[i] = PRECOLORED;
+                color[i] = pr;
+                degree[i] = Integer.MAX_VALUE / 2;
+            } else {
+                state[i] = INITIAL;
+            }
+        }
+        moveGraph.forEach((x, y) -> {
+            if(x < y) {
+                moveList.get(x).add(moves.size());
+                moveList.get(y).add(moves.size());
+                worklistMoves.add(moves.size());
+                moves.add(new int[]{x, y});
+            }
+        });
+        moveState = new int[moves.size()];
+        for(int i = 0; i < size; i++) {
+            if(isPrecolored(i))
+                continue;
+            if(degree[i] >= K) {
+                state[i] = SPILL;
+                spillWorklist.add(i);
+            } else if(isMoveRelated(i)) {
+                state[i] = FREEZE;
+                freezeWorklist.add(i);
+            } else {
+                state[i] = SIMPLIFY;
+                simplifyWorklist.add(i);
+            }
+        }
+    }
+
+    /*
+        the spill cost of a register is the number of its uses and defines,
+        weighted by 10^depth of the loops they are in.
+        the split temporaries are spilled first, so that a piece which can not be colored
+        falls back to spill code around its instructions before any other register is spilled.
+        the temporaries made then live across one instruction, they are never spilled.
+
+        the memory cost of a register is what keeping it out of the registers costs, to be weighed
+        against a new callee save register. for a register living across calls, it is
+        a reload (or a rematerialization) after each of these calls and a store after each define,
+        which the pieces split at calls need. for any other register it is its spill cost.
+        a split temporary is never spilled only to save a push.
+     */
+    private void calcSpillCost() {
+        spillCost = new double[graph.size()];
+        memoryCost = new double[graph.size()];
+        double[] defineCost = new double[graph.size()];
+        int[] defineCount = new int[graph.size()];
+        IRInstruction[] define = new IRInstruction[graph.size()];
+        for(BasicBlock bb : function.basicblocks) {
+            double weight = Math.pow(10, Math.min(loopAnalyzer.getLoopDepth(bb), 8));
+            BitSet live = (BitSet) livenessAnalyzer.liveOut.get(bb).clone();
+            for(IRInstruction inst = bb.tail; inst != null; inst = inst.prev) {
+                live.andNot(livenessAnalyzer.toBitSet(inst.getDefRegs()));
+                if(inst instanceof Call) {
+                    for(int i = live.nextSetBit(0); i >= 0; i = live.nextSetBit(i + 1))
+                        memoryCost[i] += weight;
+                }
+                live.or(livenessAnalyzer.toBitSet(inst.getUseRegs()));
+            }
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                for(Register reg : inst.getUseRegs())
+                    spillCost[livenessAnalyzer.getIndex((VirtualRegister) reg)] += weight;
+                for(Register reg : inst.getDefRegs()) {
+                    int index = livenessAnalyzer.getIndex((VirtualRegister) reg);
+                    spillCost[index] += weight;
+                    defineCost[index] += weight;
+                    defineCount[index]++;
+                    define[index] = inst;
+                }
+            }
+        }
+        rematerialization = new HashMap<>();
+        for(int i = 0; i < graph.size(); i++) {
+            VirtualRegister vr = graph.getRegister(i);
+            if(defineCount[i] == 1 && isRematerializable(vr, define[i])) {
+                rematerialization.put(vr, ((Move) define[i]).src);
+                spillCost[i] /= 2;
+            }
+            if(memoryCost[i] == 0)
+                memoryCost[i] = spillCost[i];
+            else if(!rematerialization.containsKey(vr))
+                memoryCost[i] += defineCost[i];
+            if(unspillable.contains(vr))
+                spillCost[i] = memoryCost[i] = Double.POSITIVE_INFINITY;
+            else if(spillTemporaries.contains(vr)) {
+                spillCost[i] = 0;
+                memoryCost[i] = Double.POSITIVE_INFINITY;
+            }
+        }
+    }
+
+    /*
+        a register defined only once by a move from a constant (an immediate, the address of
+        static data or of a function) can be recomputed before each use instead of being reloaded
+        from the stack, so its define is simply dropped when it is spilled.
+     */
+    private boolean isRematerializable(VirtualRegister vr, IRInstruction define) {
+        return vr.allocatedPhysicalRegister == null && vr.spillPlace == null
+                && define instanceof Move && ((Move) define).dest == vr
+                && ((Move) define).src instanceof Constant;
+    }
+
+    private LinkedList<Integer> adjacent(int n) {
+        LinkedList<Integer> adjacents = new LinkedList<>();
+        int[] neighbors = graph.getAdjacents(n);
+        for(int i = 0; i < graph.getDegree(n); i++) {
+            int m = neighbors[i];
+            if(state[m] != SELECT && state[m] != COALESCED)
+                adjacents.add(m);
+        }
+        return adjacents;
+    }
+    private LinkedList<Integer> nodeMoves(int n) {
+        LinkedList<Integer> nodeMoves = new LinkedList<>();
+        for(int m : moveList.get(n)) {
+            if(moveState[m] == MOVE_ACTIVE || moveState[m] == MOVE_WORKLIST)
+                nodeMoves.add(m);
+        }
+        return nodeMoves;
+    }
+    private boolean isMoveRelated(int n) {
+        for(int m : moveList.get(n)) {
+            if(moveState[m] == MOVE_ACTIVE || moveState[m] == MOVE_WORKLIST)
+                return true;
+        }
+        return false;
+    }
+    private void addEdge(int u, int v) {
+        if(u == v || graph.isLinked(u, v))
+            return;
+        graph.addEdge(u, v);
+        if(!isPrecolored(u))
+            degree[u]++;
+        if(!isPrecolored(v))
+            degree[v]++;
+    }
+    private void enableMoves(int n) {
+        for(int m : moveList.get(n)) {
+            if(moveState[m] == MOVE_ACTIVE) {
+                moveState[m] = MOVE_WORKLIST;
+                worklistMoves.add(m);
+            }
+        }
+    }
+    private void decrementDegree(int m) {
+        if(isPrecolored(m))
+            return;
+        int d = degree[m]--;
+        if(d == K) {
+            enableMoves(m);
+            for(int n : adjacent(m))
+                enableMoves(n);
+            if(state[m] == SPILL) {
+                spillWorklist.remove(m);
+                if(isMoveRelated(m)) {
+                    state[m] = FREEZE;
+                    freezeWorklist.add(m);
+                } else {
+                    state[m] = SIMPLIFY;
+                    simplifyWorklist.add(m);
+                }
+            }
         }
     }
     private void simplify() {
-        VirtualRegister reg = simplifyWorklist.iterator().next();
-        LinkedList<VirtualRegister> neighbors = new LinkedList<>(graph.getAdjacents(reg));
-        graph.delRegister(reg);
-        for(VirtualRegister vr : neighbors) {
-            if(graph.getDegree(vr) < K && spillWorklist.contains(vr)) {
-                spillWorklist.remove(vr);
-                simplifyWorklist.add(vr);
-            }
-        }
-        simplifyWorklist.remove(reg);
-        selectStack.addFirst(reg);
-    }
-    private void spill() {
-        VirtualRegister candidate = null;
-        int rank = -2;
-        for(VirtualRegister vr : spillWorklist) {
-            int curRank = graph.getDegree(vr);
-            if(vr.allocatedPhysicalRegister != null)    //  spill the precolored vr at last
-                curRank = -1;
-            if(curRank > rank) {
+        int n = simplifyWorklist.poll();
+        if(state[n] != SIMPLIFY)
+            return;
+        state[n] = SELECT;
+        selectStack.addFirst(n);
+        for(int m : adjacent(n))
+            decrementDegree(m);
+    }
+    private int getAlias(int n) {
+        while(state[n] == COALESCED)
+            n = alias[n];
+        return n;
+    }
+    private void addWorklist(int u) {
+        if(!isPrecolored(u) && !isMoveRelated(u) && degree[u] < K) {
+            state[u] = SIMPLIFY;
+            simplifyWorklist.add(u);
+        }
+    }
+    private boolean isOK(int t, int r) {
+        return degree[t] < K || isPrecolored(t) || graph.isLinked(t, r);
+    }
+    private boolean georgeTest(int u, int v) {
+        for(int t : adjacent(v)) {
+            if(!isOK(t, u))
+                return false;
+        }
+        return true;
+    }
+    private boolean briggsTest(int u, int v) {
+        HashSet<Integer> nodes = new HashSet<>(adjacent(u));
+        nodes.addAll(adjacent(v));
+        int k = 0;
+        for(int n : nodes) {
+            if(degree[n] >= K)
+                k++;
+        }
+        return k < K;
+    }
+    private void combine(int u, int v) {
+        if(state[v] == SPILL)
+            spillWorklist.remove(v);
+        state[v] = COALESCED;
+        alias[v] = u;
+        spillCost[u] += spillCost[v];
+        memoryCost[u] += memoryCost[v];
+        for(int m : moveList.get(v)) {
+            if(moveState[m] == MOVE_ACTIVE || moveState[m] == MOVE_WORKLIST)
+                moveList.get(u).add(m);
+        }
+        enableMoves(v);
+        for(int t : adjacent(v)) {
+            addEdge(t, u);
+            decrementDegree(t);
+        }
+        if(degree[u] >= K && state[u] == FREEZE) {
+            state[u] = SPILL;
+            spillWorklist.add(u);
+        }
+    }
+    private void coalesce() {
+        int m = worklistMoves.poll();
+        if(moveState[m] != MOVE_WORKLIST)
+            return;
+        int x = getAlias(moves.get(m)[0]);
+        int y = getAlias(moves.get(m)[1]);
+        int u, v;
+        if(isPrecolored(y)) {
+            u = y;
+            v = x;
+        } else {
+            u = x;
+            v = y;
+        }
+        if(u == v) {
+            moveState[m] = MOVE_COALESCED;
+            addWorklist(u);
+        } else if(isPrecolored(v) || graph.isLinked(u, v)) {
+            moveState[m] = MOVE_CONSTRAINED;
+            addWorklist(u);
+            addWorklist(v);
+        } else if(isPrecolored(u) ? georgeTest(u, v) : briggsTest(u, v)) {
+            moveState[m] = MOVE_COALESCED;
+            combine(u, v);
+            addWorklist(u);
+        } else {
+            moveState[m] = MOVE_ACTIVE;
+        }
+    }
+    private void freezeMoves(int u) {
+        for(int m : nodeMoves(u)) {
+            int x = moves.get(m)[0];
+            int y = moves.get(m)[1];
+            int v = getAlias(y) == getAlias(u) ? getAlias(x) : getAlias(y);
+            moveState[m] = MOVE_FROZEN;
+            if(state[v] == FREEZE && !isMoveRelated(v) && degree[v] < K) {
+                state[v] = SIMPLIFY;
+                simplifyWorklist.add(v);
+            }
+        }
+    }
+    private void freeze() {
+        int u = freezeWorklist.poll();
+        if(state[u] != FREEZE)
+            return;
+        state[u] = SIMPLIFY;
+        simplifyWorklist.add(u);
+        freezeMoves(u);
+    }
+    private void selectSpill() {
+        int candidate = -1;
+        double rank = Double.POSITIVE_INFINITY;
+        for(int vr : spillWorklist) {
+            double priority = spillCost[vr] / degree[vr];
+            if(candidate == -1 || priority < rank) {
                 candidate = vr;
-                rank = curRank;
+                rank = priority;
             }
         }
-        graph.delRegister(candidate);
         spillWorklist.remove(candidate);
-        selectStack.addFirst(candidate);
+        state[candidate] = SIMPLIFY;
+        simplifyWorklist.add(candidate);
+        freezeMoves(candidate);
+    }
+    /*
+        choose the cheapest color:
+        a caller save register costs nothing unless the register lives across a call, in which
+        case all of them are already excluded by the interference with the registers defined by Call.
+        a callee save register costs a push and a pop in the prologue and epilogue, which are paid
+        only once however many registers share it, so the used ones are preferred.
+        among the free colors of the same cost, the one of a move related register is taken.
+        a callee save register not used yet is only worth its push and pop when keeping the
+        register in memory costs more, otherwise assignColors spills the register.
+     */
+    //  a push in the prologue and a pop in the epilogue
+    private static final double CALLEE_SAVE_COST = 2;
+    private PhysicalRegister chooseColor(int n, HashSet<PhysicalRegister> okColors, HashSet<PhysicalRegister> usedCalleeSave) {
+        for(int m : moveList.get(n)) {
+            int x = getAlias(moves.get(m)[0]);
+            int y = getAlias(moves.get(m)[1]);
+            PhysicalRegister pr = color[x == getAlias(n) ? y : x];
+            if(pr != null && okColors.contains(pr) && (RegisterSet.callerSave.contains(pr) || usedCalleeSave.contains(pr)))
+                return pr;
+        }
+        for(PhysicalRegister pr : RegisterSet.callerSave) {
+            if(okColors.contains(pr))
+                return pr;
+        }
+        for(PhysicalRegister pr : usedCalleeSave) {
+            if(okColors.contains(pr))
+                return pr;
+        }
+        for(PhysicalRegister pr : RegisterSet.calleeSave) {
+            if(okColors.contains(pr))
+                return pr;
+        }
+        return okColors.iterator().next();
     }
     private void assignColors() {
-        for(VirtualRegister vr : selectStack) {
-            if(vr.allocatedPhysicalRegister != null)
-                colors.put(vr, vr.allocatedPhysicalRegister);
+        HashSet<PhysicalRegister> usedCalleeSave = new HashSet<>();
+        for(int n = 0; n < graph.size(); n++) {
+            if(isPrecolored(n) && RegisterSet.calleeSave.contains(color[n]))
+                usedCalleeSave.add(color[n]);
         }
-        for(VirtualRegister vr : selectStack) {
-            if(vr.allocatedPhysicalRegister != null)
-                continue;
+        for(int n : selectStack) {
             HashSet<PhysicalRegister> okColors = new HashSet<>(generalRegisters);
-            for(VirtualRegister neighbor : orignGraph.getAdjacents(vr)) {
-                if(colors.containsKey(neighbor))
-                    okColors.remove(colors.get(neighbor));
+            int[] neighbors = graph.getAdjacents(n);
+            for(int i = 0; i < graph.getDegree(n); i++) {
+                int w = getAlias(neighbors[i]);
+                if(state[w] == COLORED || isPrecolored(w))
+                    okColors.remove(color[w]);
             }
-            if(okColors.isEmpty()) {
-                spilledRegisers.add(vr);
+            PhysicalRegister pr = okColors.isEmpty() ? null : chooseColor(n, okColors, usedCalleeSave);
+            if(pr != null && RegisterSet.calleeSave.contains(pr) && !usedCalleeSave.contains(pr)
+                    && memoryCost[n] < CALLEE_SAVE_COST)
+                pr = null;
+            if(pr == null) {
+                state[n] = SPILLED;
+                spilledRegisers.add(graph.getRegister(n));
             } else {
-                PhysicalRegister pr = null;
-                for(PhysicalRegister reg : RegisterSet.callerSave) {
-                    if (okColors.contains(reg)) {
-                        pr = reg;
-                        break;
-                    }
-                }
-                if(pr == null)
-                    pr = okColors.iterator().next();
-                colors.put(vr, pr);
+                if(RegisterSet.calleeSave.contains(pr))
+                    usedCalleeSave.add(pr);
+                state[n] = COLORED;
+                color[n] = pr;
             }
         }
+        for(int n = 0; n < graph.size(); n++) {
+            if(state[n] == COALESCED)
+                color[n] = color[getAlias(n)];
+            if(color[n] != null)
+                colors.put(graph.getRegister(n), color[n]);
+        }
     }
-    private void rewriteFunction() {
-        HashMap<VirtualRegister, Memory> spillPlaces = new HashMap<>();
-        for(VirtualRegister vr : spilledRegisers) {
-            if(vr.spillPlace != null) {
-                spillPlaces.put(vr,  vr.spillPlace);
-            } else {
-                spillPlaces.put(vr, new StackSlot(vr.hint));
+    /*
+        a spilled register referenced in a loop without calls gets a temporary of its own over the whole loop,
+        the outermost such loop first: it is copied from the register at the end of the blocks entering
+        the header, and back at the head of the exit targets where the register is live if the loop
+        defines it. the pieces below turn these copies into one reload before the loop and one store
+        after it, instead of spill code in every block of the body on every iteration.
+        the loop is left alone when an exit target is also entered from outside the loop.
+        a loop temporary which is spilled again is split into pieces like any other register.
+
+        the live range of a spilled register is split at the boundaries of BasicBlocks and at calls:
+        inside each piece, it is reloaded once before the first use, kept in one temporary across
+        the following uses, and stored back once at the end of the piece if it was defined and is
+        still needed, rather than a reload before every use and a store after every define.
+        a temporary which is spilled again falls back to load/store around each instruction,
+        sharing the stack slot of the register it was split from.
+     */
+    private Memory getSpillPlace(VirtualRegister vr) {
+        if(vr.spillPlace != null)
+            return vr.spillPlace;
+        Memory place = splitFrom.get(vr);
+        if(place == null) {
+            place = new StackSlot(vr.hint);
+            splitFrom.put(vr, place);
+        }
+        return place;
+    }
+    private Operand getReloadSource(VirtualRegister vr) {
+        Operand value = rematerialization.get(vr);
+        return value != null ? value : getSpillPlace(vr);
+    }
+    private VirtualRegister newTemporary(VirtualRegister vr) {
+        VirtualRegister temp = new VirtualRegister("");
+        if(!rematerialization.containsKey(vr))
+            splitFrom.put(temp, getSpillPlace(vr));
+        if(spillTemporaries.contains(vr))
+            unspillable.add(temp);
+        spillTemporaries.add(temp);
+        return temp;
+    }
+    private boolean isLiveOut(VirtualRegister vr, BitSet liveOut) {
+        return !(getSpillPlace(vr) instanceof StackSlot) || liveOut.get(livenessAnalyzer.getIndex(vr));
+    }
+    private void storeSpilled(IRInstruction inst, boolean after, HashMap<VirtualRegister, VirtualRegister> current,
+                              HashSet<VirtualRegister> dirty, BitSet liveOut, boolean keepAll) {
+        for(VirtualRegister vr : dirty) {
+            if(!keepAll && !isLiveOut(vr, liveOut))
+                continue;
+            Move store = new Move(inst.bb, getSpillPlace(vr), current.get(vr));
+            if(after)
+                inst.append(store);
+            else
+                inst.prepend(store);
+        }
+        dirty.clear();
+        current.clear();
+    }
+    //  the load and store between a temporary spilled again and the stack slot it was split from
+    private boolean isRedundantSpillCode(IRInstruction inst) {
+        if(!(inst instanceof Move))
+            return false;
+        Move move = (Move) inst;
+        if(move.dest instanceof VirtualRegister && spilledRegisers.contains(move.dest)
+                && spillTemporaries.contains(move.dest))
+            return move.src == getSpillPlace((VirtualRegister) move.dest);
+        if(move.src instanceof VirtualRegister && spilledRegisers.contains(move.src)
+                && spillTemporaries.contains(move.src))
+            return move.dest == getSpillPlace((VirtualRegister) move.src);
+        return false;
+    }
+    private boolean isReferenced(HashSet<BasicBlock> body, VirtualRegister vr, boolean defineOnly) {
+        for(BasicBlock bb : body) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(inst.getDefRegs().contains(vr) || (!defineOnly && inst.getUseRegs().contains(vr)))
+                    return true;
+            }
+        }
+        return false;
+    }
+    private boolean hasCall(HashSet<BasicBlock> body) {
+        for(BasicBlock bb : body) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(inst instanceof Call)
+                    return true;
+            }
+        }
+        return false;
+    }
+    //  the exit targets where vr is live, null if one of them is entered from outside the loop
+    private LinkedList<BasicBlock> getExitTargets(HashSet<BasicBlock> body, VirtualRegister vr) {
+        LinkedList<BasicBlock> targets = new LinkedList<>();
+        for(BasicBlock bb : body) {
+            for(BasicBlock succ : bb.successors) {
+                if(body.contains(succ) || targets.contains(succ)
+                        || !livenessAnalyzer.liveIn.get(succ).get(livenessAnalyzer.getIndex(vr)))
+                    continue;
+                if(!body.containsAll(succ.frontiers))
+                    return null;
+                targets.add(succ);
+            }
+        }
+        return targets;
+    }
+    private boolean splitAroundLoop(BasicBlock header, VirtualRegister vr) {
+        HashSet<BasicBlock> body = loopAnalyzer.loops.get(header);
+        LinkedList<BasicBlock> exitTargets = getExitTargets(body, vr);
+        if(exitTargets == null)
+            return false;
+        VirtualRegister temp = new VirtualRegister("");
+        loopTemporaries.add(temp);
+        HashMap<Register, Register> renameMap = new HashMap<>();
+        renameMap.put(vr, temp);
+        boolean defined = isReferenced(body, vr, true);
+        for(BasicBlock bb : body) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                inst.renameUseReg(renameMap);
+                inst.renameDefReg(renameMap);
+            }
+        }
+        if(livenessAnalyzer.liveIn.get(header).get(livenessAnalyzer.getIndex(vr))) {
+            for(BasicBlock pred : header.frontiers) {
+                if(!body.contains(pred))
+                    pred.tail.prepend(new Move(pred, temp, vr));
+            }
+        }
+        if(defined) {
+            for(BasicBlock target : exitTargets)
+                target.head.prepend(new Move(target, vr, temp));
+        }
+        return true;
+    }
+    //  the most registers not spilled live at once in the loop
+    private int getPressure(HashSet<BasicBlock> body, BitSet spilled) {
+        int pressure = 0;
+        for(BasicBlock bb : body) {
+            BitSet live = (BitSet) livenessAnalyzer.liveOut.get(bb).clone();
+            for(IRInstruction inst = bb.tail; inst != null; inst = inst.prev) {
+                live.andNot(livenessAnalyzer.toBitSet(inst.getDefRegs()));
+                live.or(livenessAnalyzer.toBitSet(inst.getUseRegs()));
+                BitSet kept = (BitSet) live.clone();
+                kept.andNot(spilled);
+                pressure = Math.max(pressure, kept.cardinality());
+            }
+        }
+        return pressure;
+    }
+    private int countReferences(HashSet<BasicBlock> body, VirtualRegister vr) {
+        int count = 0;
+        for(BasicBlock bb : body) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(inst.getUseRegs().contains(vr) || inst.getDefRegs().contains(vr))
+                    count++;
             }
         }
+        return count;
+    }
+    private void splitAroundLoops() {
+        BitSet spilled = livenessAnalyzer.toBitSet(new LinkedList<>(spilledRegisers));
+        //  an enclosing loop contains the blocks of the loops inside it, so it is larger
+        LinkedList<BasicBlock> outerFirst = new LinkedList<>(loopAnalyzer.loops.keySet());
+        outerFirst.sort((x, y) -> loopAnalyzer.loops.get(y).size() - loopAnalyzer.loops.get(x).size());
+        //  measured before the temporaries, which the liveness does not know, are added
+        HashMap<BasicBlock, Integer> pressure = new HashMap<>();
+        for(BasicBlock header : outerFirst)
+            pressure.put(header, getPressure(loopAnalyzer.loops.get(header), spilled));
+        HashMap<BasicBlock, Integer> splitCount = new HashMap<>();
+        HashMap<VirtualRegister, HashSet<BasicBlock>> covered = new HashMap<>();
+        for(BasicBlock header : outerFirst) {
+            HashSet<BasicBlock> body = loopAnalyzer.loops.get(header);
+            //  the temporaries of the enclosing loops are live here too
+            int budget = K - 1 - pressure.get(header);
+            for(BasicBlock outer : splitCount.keySet()) {
+                if(loopAnalyzer.loops.get(outer).contains(header))
+                    budget -= splitCount.get(outer);
+            }
+            if(budget <= 0 || hasCall(body))
+                continue;
+            HashMap<VirtualRegister, Integer> references = new HashMap<>();
+            for(VirtualRegister vr : spilledRegisers) {
+                if(spillTemporaries.contains(vr) || loopTemporaries.contains(vr) || rematerialization.containsKey(vr)
+                        || covered.getOrDefault(vr, new HashSet<>()).contains(header))
+                    continue;
+                int count = countReferences(body, vr);
+                if(count > 0)
+                    references.put(vr, count);
+            }
+            LinkedList<VirtualRegister> candidates = new LinkedList<>(references.keySet());
+            candidates.sort((x, y) -> references.get(y) - references.get(x));
+            int count = 0;
+            for(VirtualRegister vr : candidates) {
+                if(count == budget)
+                    break;
+                if(splitAroundLoop(header, vr)) {
+                    covered.computeIfAbsent(vr, k -> new HashSet<>()).addAll(body);
+                    count++;
+                }
+            }
+            splitCount.put(header, count);
+        }
+    }
+    private void rewriteFunction() {
+        splitAroundLoops();
         for(BasicBlock bb : function.basicblocks) {
+            BitSet liveOut = livenessAnalyzer.liveOut.get(bb);
+            HashMap<VirtualRegister, VirtualRegister> current = new HashMap<>();
+            HashSet<VirtualRegister> dirty = new HashSet<>();
+            HashMap<VirtualRegister, IRInstruction> lastReference = new HashMap<>();
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                for(Register reg : inst.getUseRegs())
+                    lastReference.put((VirtualRegister) reg, inst);
+                for(Register reg : inst.getDefRegs())
+                    lastReference.put((VirtualRegister) reg, inst);
+            }
             for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(inst instanceof Move && spilledRegisers.contains(((Move) inst).dest)
+                        && rematerialization.containsKey(((Move) inst).dest)) {
+                    inst.remove();
+                    continue;
+                }
+                if(isRedundantSpillCode(inst)) {
+                    inst.remove();
+                    continue;
+                }
+                if(inst instanceof Call)
+                    storeSpilled(inst, false, current, dirty, liveOut, true);
+
                 LinkedList<VirtualRegister> used = new LinkedList<>(trans(inst.getUseRegs()));
                 LinkedList<VirtualRegister> defined = new LinkedList<>(trans(inst.getDefRegs()));
                 HashMap<Register,Register> renameMap = new HashMap<>();
+                LinkedList<VirtualRegister> stores = new LinkedList<>();
                 used.retainAll(spilledRegisers);
                 defined.retainAll(spilledRegisers);
-                for(VirtualRegister reg : used)
-                    if(!renameMap.containsKey(reg)) renameMap.put(reg, new VirtualRegister(""));
-                for(VirtualRegister reg : defined)
-                    if(!renameMap.containsKey(reg)) renameMap.put(reg, new VirtualRegister(""));
+                for(VirtualRegister reg : used) {
+                    if(renameMap.containsKey(reg))
+                        continue;
+                    VirtualRegister temp = current.get(reg);
+                    if(temp == null) {
+                        temp = newTemporary(reg);
+                        inst.prepend(new Move(inst.bb, temp, getReloadSource(reg)));
+                        if(!spillTemporaries.contains(reg))
+                            current.put(reg, temp);
+                    }
+                    renameMap.put(reg, temp);
+                }
+                for(VirtualRegister reg : defined) {
+                    if(!renameMap.containsKey(reg))
+                        renameMap.put(reg, current.containsKey(reg) ? current.get(reg) : newTemporary(reg));
+                    if(spillTemporaries.contains(reg)) {
+                        stores.add(reg);
+                    } else {
+                        current.put(reg, (VirtualRegister) renameMap.get(reg));
+                        dirty.add(reg);
+                    }
+                }
                 inst.renameDefReg(renameMap);
                 inst.renameUseReg(renameMap);
-                for(VirtualRegister reg : used)
-                    inst.prepend(new Move(inst.bb, renameMap.get(reg), spillPlaces.get(reg)));
-                for(VirtualRegister reg : defined) {
-                    inst.append(new Move(inst.bb, spillPlaces.get(reg), renameMap.get(reg)));
+
+                if(inst instanceof Jump || inst instanceof CJump || inst instanceof Return) {
+                    storeSpilled(inst, false, current, dirty, liveOut, false);
+                    continue;
+                }
+                //  end the piece after the last reference in this BasicBlock
+                for(Register reg : renameMap.keySet()) {
+                    VirtualRegister vr = (VirtualRegister) reg;
+                    if(lastReference.get(vr) != inst || !current.containsKey(vr))
+                        continue;
+                    if(dirty.remove(vr) && isLiveOut(vr, liveOut))
+                        stores.add(vr);
+                    current.remove(vr);
+                }
+                for(VirtualRegister reg : stores) {
+                    inst.append(new Move(inst.bb, getSpillPlace(reg), renameMap.get(reg)));
                     inst = inst.next;
                 }
             }
+            if(!dirty.isEmpty())
+                storeSpilled(bb.tail, true, current, dirty, liveOut, false);
         }
     }
     private void replaceRegisers() {
@@ -204,20 +822,27 @@ public class SimpleGraphAllocator {
             for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
                 inst.renameUseReg(renameMap);
                 inst.renameDefReg(renameMap);
+                if(inst instanceof Move && ((Move) inst).src == ((Move) inst).dest)
+                    inst.remove();
             }
     }
     private void processFunction() {
-        orignGraph = new Graph();
+        graph = new Graph();
+        moveGraph = new Graph();
+        loopAnalyzer.analyze(function);
         while(true) {
 //            showFunction(function);
 
-            livenessAnalyzer.getInferenceGraph(function, orignGraph, null);
-            graph = new Graph(orignGraph);
+            livenessAnalyzer.getInferenceGraph(function, graph, moveGraph);
             init();
+            calcSpillCost();
             do {
                 if (!simplifyWorklist.isEmpty()) simplify();
-                else if (!spillWorklist.isEmpty()) spill();
-            } while (!simplifyWorklist.isEmpty() || !spillWorklist.isEmpty());
+                else if (!worklistMoves.isEmpty()) coalesce();
+                else if (!freezeWorklist.isEmpty()) freeze();
+                else if (!spillWorklist.isEmpty()) selectSpill();
+            } while (!simplifyWorklist.isEmpty() || !worklistMoves.isEmpty()
+                    || !freezeWorklist.isEmpty() || !spillWorklist.isEmpty());
             assignColors();
             if (!spilledRegisers.isEmpty())
                 rewriteFunction();
@@ -227,6 +852,10 @@ public class SimpleGraphAllocator {
             }
         }
 
+        spillTemporaries.clear();
+        splitFrom.clear();
+        unspillable.clear();
+        loopTemporaries.clear();
         function.finishAllocate();
 
 //        irPrinter.init();
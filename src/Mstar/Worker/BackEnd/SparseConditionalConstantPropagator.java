@@ -0,0 +1,379 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+
+import java.util.*;
+
+import static Mstar.IR.RegisterSet.vrax;
+import static Mstar.IR.RegisterSet.vrdx;
+
+/*
+    sparse conditional constant propagation (Wegman & Zadeck) on the SSA form.
+    every SSA register starts at TOP and can only go down to a constant and then to BOTTOM,
+    a BasicBlock is evaluated only after an edge into it is found executable, and a CJump
+    whose condition is known only makes the taken edge executable.
+
+    the unit of evaluation is a Phi, a CJump or a whole definition chain (see SSAConstructor).
+    the precolored registers are not in SSA form, their values are looked up backwards in the
+    BasicBlock, which covers the shift count in rcx and the operands of imul / idiv in rax and rdx.
+
+    the values are computed in 64 bits as the generated code does, a result which does not fit
+    in an Immediate is BOTTOM.
+
+    at last the constant registers are replaced by Immediates where an operand allows one,
+    CJumps with only one executable edge become Jumps and the unexecutable blocks are deleted.
+ */
+public class SparseConditionalConstantPropagator {
+    private static class LatticeValue {
+        static final LatticeValue TOP = new LatticeValue();
+        static final LatticeValue BOTTOM = new LatticeValue();
+        long value;
+
+        LatticeValue() { }
+        LatticeValue(long value) {
+            this.value = value;
+        }
+        boolean isConstant() {
+            return this != TOP && this != BOTTOM;
+        }
+    }
+
+    private IRProgram irProgram;
+
+    //  for process function
+    private Function function;
+    private HashMap<VirtualRegister, LinkedList<IRInstruction>> chains;
+    private HashMap<VirtualRegister, Phi> phis;
+    private HashMap<VirtualRegister, LatticeValue> values;
+    private HashMap<VirtualRegister, HashSet<IRInstruction>> users;
+    private HashSet<BasicBlock> executableBlocks;
+    private HashMap<BasicBlock, HashSet<BasicBlock>> executableEdges;
+    private LinkedList<BasicBlock[]> edgeWorklist;
+    private LinkedList<VirtualRegister> registerWorklist;
+    private IRInstruction evaluating;
+
+    public SparseConditionalConstantPropagator(IRProgram irProgram) {
+        this.irProgram = irProgram;
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    private LatticeValue meet(LatticeValue a, LatticeValue b) {
+        if(a == LatticeValue.TOP)
+            return b;
+        if(b == LatticeValue.TOP)
+            return a;
+        if(a == LatticeValue.BOTTOM || b == LatticeValue.BOTTOM || a.value != b.value)
+            return LatticeValue.BOTTOM;
+        return a;
+    }
+
+    private LatticeValue getConstant(long value) {
+        if(value != (int) value)
+            return LatticeValue.BOTTOM;
+        return new LatticeValue(value);
+    }
+
+    private LatticeValue getValue(Operand operand, IRInstruction at) {
+        if(operand instanceof Immediate)
+            return new LatticeValue(((Immediate) operand).value);
+        if(SSAConstructor.isRenamable(operand)) {
+            VirtualRegister vr = (VirtualRegister) operand;
+            users.computeIfAbsent(vr, k -> new HashSet<>()).add(evaluating);
+            if(!chains.containsKey(vr) && !phis.containsKey(vr))
+                return LatticeValue.BOTTOM;
+            return values.getOrDefault(vr, LatticeValue.TOP);
+        }
+        if(operand instanceof VirtualRegister && ((VirtualRegister) operand).allocatedPhysicalRegister != null)
+            return getPrecoloredValue((VirtualRegister) operand, at);
+        return LatticeValue.BOTTOM;
+    }
+
+    //  the value of a precolored register right before at, from the last definition in the same block
+    private LatticeValue getPrecoloredValue(VirtualRegister reg, IRInstruction at) {
+        for(IRInstruction inst = at.prev; inst != null; inst = inst.prev) {
+            if(!inst.getDefRegs().contains(reg))
+                continue;
+            if(inst instanceof Move && ((Move) inst).dest == reg)
+                return getValue(((Move) inst).src, inst);
+            if(inst instanceof BinaryInst) {
+                BinaryInst binaryInst = (BinaryInst) inst;
+                if(binaryInst.dest == reg)
+                    return calcBinary(binaryInst.op, getPrecoloredValue(reg, inst), getValue(binaryInst.src, inst));
+                if(binaryInst.dest == null) {
+                    //  imul / idiv src: rdx:rax op= src
+                    BinaryInst.BinaryOp op = binaryInst.op;
+                    if(op == BinaryInst.BinaryOp.MUL && reg == vrdx)
+                        return LatticeValue.BOTTOM;
+                    if((op == BinaryInst.BinaryOp.DIV && reg == vrdx) || (op == BinaryInst.BinaryOp.MOD && reg == vrax))
+                        return LatticeValue.BOTTOM;
+                    return calcBinary(op, getPrecoloredValue(vrax, inst), getValue(binaryInst.src, inst));
+                }
+            }
+            if(inst instanceof UnaryInst && ((UnaryInst) inst).dest == reg)
+                return calcUnary(((UnaryInst) inst).op, getPrecoloredValue(reg, inst));
+            return LatticeValue.BOTTOM;
+        }
+        return LatticeValue.BOTTOM;
+    }
+
+    private LatticeValue calcBinary(BinaryInst.BinaryOp op, LatticeValue lhs, LatticeValue rhs) {
+        if(lhs == LatticeValue.BOTTOM || rhs == LatticeValue.BOTTOM)
+            return LatticeValue.BOTTOM;
+        if(lhs == LatticeValue.TOP || rhs == LatticeValue.TOP)
+            return LatticeValue.TOP;
+        long l = lhs.value, r = rhs.value;
+        switch(op) {
+            case ADD: return getConstant(l + r);
+            case SUB: return getConstant(l - r);
+            case MUL: return getConstant(l * r);
+            case DIV:
+            case MOD:
+                //  the dividend is extended by cdq, which is only right when it is not negative
+                if(r == 0 || l < 0)
+                    return LatticeValue.BOTTOM;
+                return getConstant(op == BinaryInst.BinaryOp.DIV ? l / r : l % r);
+            case SAL: return getConstant(l << (r & 63));
+            case SAR: return getConstant(l >> (r & 63));
+            case AND: return getConstant(l & r);
+            case OR: return getConstant(l | r);
+            case XOR: return getConstant(l ^ r);
+            default: return LatticeValue.BOTTOM;
+        }
+    }
+
+    private LatticeValue calcUnary(UnaryInst.UnaryOp op, LatticeValue value) {
+        if(!value.isConstant())
+            return value;
+        switch(op) {
+            case NEG: return getConstant(-value.value);
+            case NOT: return getConstant(~value.value);
+            case INC: return getConstant(value.value + 1);
+            case DEC: return getConstant(value.value - 1);
+            default: return LatticeValue.BOTTOM;
+        }
+    }
+
+    private void lower(VirtualRegister vr, LatticeValue value) {
+        LatticeValue old = values.getOrDefault(vr, LatticeValue.TOP);
+        LatticeValue now = meet(old, value);
+        if(now == old)
+            return;
+        values.put(vr, now);
+        registerWorklist.add(vr);
+    }
+
+    private void addEdge(BasicBlock from, BasicBlock to) {
+        edgeWorklist.add(new BasicBlock[]{from, to});
+    }
+
+    private boolean isExecutable(BasicBlock from, BasicBlock to) {
+        return executableEdges.containsKey(from) && executableEdges.get(from).contains(to);
+    }
+
+    private void evaluatePhi(Phi phi) {
+        LatticeValue value = LatticeValue.TOP;
+        for(BasicBlock pred : phi.paths.keySet()) {
+            if(isExecutable(pred, phi.bb))
+                value = meet(value, getValue(phi.paths.get(pred), phi));
+        }
+        lower(phi.dest, value);
+    }
+
+    private void evaluateChain(VirtualRegister vr) {
+        LatticeValue value = LatticeValue.BOTTOM;
+        for(IRInstruction inst : chains.get(vr)) {
+            if(inst instanceof Move)
+                value = getValue(((Move) inst).src, inst);
+            else if(inst instanceof BinaryInst)
+                value = calcBinary(((BinaryInst) inst).op, value, getValue(((BinaryInst) inst).src, inst));
+            else if(inst instanceof UnaryInst)
+                value = calcUnary(((UnaryInst) inst).op, value);
+            else
+                value = LatticeValue.BOTTOM;
+        }
+        lower(vr, value);
+    }
+
+    private boolean compare(CJump.CompareOp op, long l, long r) {
+        switch(op) {
+            case E: return l == r;
+            case NE: return l != r;
+            case G: return l > r;
+            case GE: return l >= r;
+            case L: return l < r;
+            case LE: return l <= r;
+            default: return false;
+        }
+    }
+
+    private void evaluateCJump(CJump cJump) {
+        LatticeValue lhs = getValue(cJump.src1, cJump);
+        LatticeValue rhs = getValue(cJump.src2, cJump);
+        if(lhs == LatticeValue.BOTTOM || rhs == LatticeValue.BOTTOM) {
+            addEdge(cJump.bb, cJump.thenBB);
+            addEdge(cJump.bb, cJump.elseBB);
+        } else if(lhs.isConstant() && rhs.isConstant()) {
+            addEdge(cJump.bb, compare(cJump.op, lhs.value, rhs.value) ? cJump.thenBB : cJump.elseBB);
+        }
+    }
+
+    //  unit is a Phi, a CJump or the first instruction of a definition chain
+    private void evaluate(IRInstruction unit) {
+        evaluating = unit;
+        if(unit instanceof Phi)
+            evaluatePhi((Phi) unit);
+        else if(unit instanceof CJump)
+            evaluateCJump((CJump) unit);
+        else
+            evaluateChain((VirtualRegister) unit.getDefRegs().getFirst());
+    }
+
+    private void evaluateBasicBlock(BasicBlock bb) {
+        for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+            if(inst instanceof Phi || inst instanceof CJump) {
+                evaluate(inst);
+            } else if(inst instanceof Jump) {
+                addEdge(bb, ((Jump) inst).targetBB);
+            } else {
+                for(VirtualRegister vr : SSAConstructor.getDefs(inst)) {
+                    if(chains.get(vr).getFirst() == inst)
+                        evaluate(inst);
+                }
+            }
+        }
+    }
+
+    private void propagate() {
+        executableBlocks = new HashSet<>();
+        executableEdges = new HashMap<>();
+        edgeWorklist = new LinkedList<>();
+        registerWorklist = new LinkedList<>();
+        executableBlocks.add(function.enterBB);
+        evaluateBasicBlock(function.enterBB);
+        while(!edgeWorklist.isEmpty() || !registerWorklist.isEmpty()) {
+            while(!edgeWorklist.isEmpty()) {
+                BasicBlock[] edge = edgeWorklist.poll();
+                if(!executableEdges.computeIfAbsent(edge[0], k -> new HashSet<>()).add(edge[1]))
+                    continue;
+                BasicBlock bb = edge[1];
+                if(executableBlocks.add(bb)) {
+                    evaluateBasicBlock(bb);
+                } else {
+                    for(IRInstruction inst = bb.head; inst instanceof Phi; inst = inst.next)
+                        evaluate(inst);
+                }
+            }
+            while(!registerWorklist.isEmpty()) {
+                VirtualRegister vr = registerWorklist.poll();
+                if(!users.containsKey(vr))
+                    continue;
+                for(IRInstruction unit : new ArrayList<>(users.get(vr))) {
+                    if(executableBlocks.contains(unit.bb))
+                        evaluate(unit);
+                }
+            }
+        }
+    }
+
+    private Operand substitute(Operand operand) {
+        if(operand instanceof VirtualRegister && values.containsKey(operand) && values.get(operand).isConstant())
+            return new Immediate((int) values.get(operand).value);
+        return operand;
+    }
+
+    private void replaceConstants() {
+        //  the definitions of the constant registers
+        for(VirtualRegister vr : values.keySet()) {
+            LatticeValue value = values.get(vr);
+            if(!value.isConstant())
+                continue;
+            if(phis.containsKey(vr)) {
+                Phi phi = phis.get(vr);
+                IRInstruction inst = phi.bb.head;
+                while(inst.next instanceof Phi)
+                    inst = inst.next;
+                inst.append(new Move(phi.bb, vr, new Immediate((int) value.value)));
+                phi.remove();
+            } else {
+                LinkedList<IRInstruction> chain = chains.get(vr);
+                ((Move) chain.getFirst()).src = new Immediate((int) value.value);
+                for(IRInstruction inst : chain.subList(1, chain.size()))
+                    inst.remove();
+            }
+        }
+
+        //  the uses of them
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                evaluating = inst;
+                if(inst instanceof Move) {
+                    ((Move) inst).src = substitute(((Move) inst).src);
+                } else if(inst instanceof BinaryInst) {
+                    BinaryInst binaryInst = (BinaryInst) inst;
+                    binaryInst.src = substitute(binaryInst.src);
+                    if((binaryInst.op == BinaryInst.BinaryOp.SAL || binaryInst.op == BinaryInst.BinaryOp.SAR)
+                            && binaryInst.src instanceof VirtualRegister) {
+                        LatticeValue count = getValue(binaryInst.src, binaryInst);
+                        if(count.isConstant())
+                            binaryInst.src = new Immediate((int) count.value);
+                    }
+                } else if(inst instanceof CJump) {
+                    ((CJump) inst).src1 = substitute(((CJump) inst).src1);
+                    ((CJump) inst).src2 = substitute(((CJump) inst).src2);
+                } else if(inst instanceof Push) {
+                    ((Push) inst).src = substitute(((Push) inst).src);
+                } else if(inst instanceof Call) {
+                    LinkedList<Operand> args = ((Call) inst).args;
+                    for(int i = 0; i < args.size(); i++)
+                        args.set(i, substitute(args.get(i)));
+                } else if(inst instanceof Phi) {
+                    HashMap<BasicBlock, Operand> paths = ((Phi) inst).paths;
+                    for(BasicBlock pred : paths.keySet())
+                        paths.put(pred, substitute(paths.get(pred)));
+                }
+            }
+        }
+    }
+
+    private void pruneControlFlow() {
+        for(BasicBlock bb : executableBlocks) {
+            if(!(bb.tail instanceof CJump))
+                continue;
+            CJump cJump = (CJump) bb.tail;
+            HashSet<BasicBlock> targets = executableEdges.get(bb);
+            if(targets != null && targets.size() == 1) {
+                cJump.prepend(new Jump(bb, targets.iterator().next()));
+                cJump.remove();
+            }
+        }
+        function.basicblocks.removeIf(bb -> !executableBlocks.contains(bb) && bb != function.leaveBB);
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst instanceof Phi; inst = inst.next)
+                ((Phi) inst).paths.keySet().removeIf(pred -> !isExecutable(pred, bb));
+        }
+        function.finishBuild();
+    }
+
+    private void processFunction(Function function) {
+        this.function = function;
+        chains = SSAConstructor.getDefinitionChains(function);
+        phis = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst instanceof Phi; inst = inst.next)
+                phis.put(((Phi) inst).dest, (Phi) inst);
+        }
+        values = new HashMap<>();
+        users = new HashMap<>();
+        propagate();
+        replaceConstants();
+        pruneControlFlow();
+    }
+}
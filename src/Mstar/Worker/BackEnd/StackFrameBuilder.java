@@ -8,9 +8,8 @@ import Mstar.IR.Instruction.*;
 import Mstar.IR.Operand.*;
 import Mstar.IR.RegisterSet;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
+import java.io.PrintStream;
+import java.util.*;
 
 public class StackFrameBuilder {
     /*
@@ -33,12 +32,24 @@ public class StackFrameBuilder {
     arg[0]  arg[1]  arg[2]  arg[3]  arg[4]  arg[5]
     rdi     rsi     rdx     rcx     r8      r9
 
+    3. Stack Slot Coloring
+    the temporaries whose live ranges never overlap share the same place in the frame,
+    so temporary[i] above is the i-th color rather than the i-th StackSlot.
+
      */
     class Frame {
         public LinkedList<StackSlot> parameters = new LinkedList<>();
         public LinkedList<StackSlot> temporaries = new LinkedList<>();
+        public HashMap<StackSlot, Integer> colors = new HashMap<>();
+        public int colorCount = 0;
         public int getFrameSize() {
-            int bytes = Config.REGISTER_WIDTH * (parameters.size() + temporaries.size());
+            return getFrameSize(colorCount);
+        }
+        public int getFrameSizeWithoutSharing() {
+            return getFrameSize(temporaries.size());
+        }
+        private int getFrameSize(int temporarySlots) {
+            int bytes = Config.REGISTER_WIDTH * (parameters.size() + temporarySlots);
             bytes = (bytes + 16 - 1) / 16 * 16; //  round up to a multiply of 16
             return bytes;
         }
@@ -52,6 +63,114 @@ public class StackFrameBuilder {
         this.framesMap = new HashMap<>();
     }
 
+    //  a Move into a StackSlot is the only instruction which defines it without reading it
+    private boolean isDefinedBy(IRInstruction inst, StackSlot ss) {
+        return inst instanceof Move && ((Move) inst).dest == ss && ((Move) inst).src != ss;
+    }
+
+    /*
+        build the interference graph of the temporaries from their liveness,
+        and color it greedily in the order they appear in the function
+     */
+    private void colorStackSlots(Function function, Frame frame) {
+        HashMap<StackSlot, Integer> index = new HashMap<>();
+        for(StackSlot ss : frame.temporaries)
+            index.put(ss, index.size());
+        int size = index.size();
+
+        HashMap<BasicBlock, BitSet> used = new HashMap<>();
+        HashMap<BasicBlock, BitSet> defined = new HashMap<>();
+        HashMap<BasicBlock, BitSet> liveIn = new HashMap<>();
+        HashMap<BasicBlock, BitSet> liveOut = new HashMap<>();
+        for(BasicBlock bb : function.basicblocks) {
+            BitSet bbUsed = new BitSet();
+            BitSet bbDefined = new BitSet();
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                for(StackSlot ss : inst.getStackSlots()) {
+                    Integer i = index.get(ss);
+                    if(i == null)
+                        continue;
+                    if(isDefinedBy(inst, ss))
+                        bbDefined.set(i);
+                    else if(!bbDefined.get(i))
+                        bbUsed.set(i);
+                }
+            }
+            used.put(bb, bbUsed);
+            defined.put(bb, bbDefined);
+            liveIn.put(bb, new BitSet());
+            liveOut.put(bb, new BitSet());
+        }
+        LinkedHashSet<BasicBlock> order = new LinkedHashSet<>(function.reversePostOrderOnReverseCFG);
+        order.addAll(function.basicblocks);
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            for(BasicBlock bb : order) {
+                BitSet bbLiveOut = liveOut.get(bb);
+                for(BasicBlock succ : bb.successors)
+                    bbLiveOut.or(liveIn.get(succ));
+                BitSet bbLiveIn = (BitSet) bbLiveOut.clone();
+                bbLiveIn.andNot(defined.get(bb));
+                bbLiveIn.or(used.get(bb));
+                if(!bbLiveIn.equals(liveIn.get(bb))) {
+                    liveIn.put(bb, bbLiveIn);
+                    changed = true;
+                }
+            }
+        }
+
+        BitSet[] interference = new BitSet[size];
+        for(int i = 0; i < size; i++)
+            interference[i] = new BitSet();
+        for(BasicBlock bb : function.basicblocks) {
+            BitSet live = (BitSet) liveOut.get(bb).clone();
+            for(IRInstruction inst = bb.tail; inst != null; inst = inst.prev) {
+                LinkedList<StackSlot> slots = inst.getStackSlots();
+                for(StackSlot ss : slots) {
+                    Integer i = index.get(ss);
+                    if(i == null || !isDefinedBy(inst, ss))
+                        continue;
+                    interference[i].or(live);
+                    for(int j = live.nextSetBit(0); j >= 0; j = live.nextSetBit(j + 1))
+                        interference[j].set(i);
+                    live.clear(i);
+                }
+                for(StackSlot ss : slots) {
+                    Integer i = index.get(ss);
+                    if(i != null && !isDefinedBy(inst, ss))
+                        live.set(i);
+                }
+            }
+        }
+        //  the temporaries read before written are all alive at the beginning
+        BitSet enterLive = liveIn.get(function.enterBB);
+        for(int i = enterLive.nextSetBit(0); i >= 0; i = enterLive.nextSetBit(i + 1))
+            interference[i].or(enterLive);
+
+        ArrayList<StackSlot> slots = new ArrayList<>(frame.temporaries);
+        for(int i = 0; i < size; i++) {
+            BitSet neighborColors = new BitSet();
+            for(int j = interference[i].nextSetBit(0); j >= 0; j = interference[i].nextSetBit(j + 1)) {
+                Integer color = frame.colors.get(slots.get(j));
+                if(j != i && color != null)
+                    neighborColors.set(color);
+            }
+            int color = neighborColors.nextClearBit(0);
+            frame.colors.put(slots.get(i), color);
+            frame.colorCount = Math.max(frame.colorCount, color + 1);
+        }
+    }
+
+    public void printTo(PrintStream output) {
+        for(Function function : irProgram.functions) {
+            Frame frame = framesMap.get(function);
+            if(frame.colorCount < frame.temporaries.size())
+                output.println("; frame of " + function.name + ": " + frame.temporaries.size() + " stack slots in "
+                        + frame.colorCount + ", " + frame.getFrameSizeWithoutSharing() + " -> " + frame.getFrameSize() + " bytes");
+        }
+    }
+
     private void processFunction(Function function) {
         Frame frame = new Frame();
         framesMap.put(function, frame);
@@ -63,7 +182,7 @@ public class StackFrameBuilder {
                 frame.parameters.add(ss);
             }
         }
-        HashSet<StackSlot> slotsSet = new HashSet<>();
+        LinkedHashSet<StackSlot> slotsSet = new LinkedHashSet<>();
         for(BasicBlock bb : function.basicblocks) {
             for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
                 LinkedList<StackSlot> slots = inst.getStackSlots();
@@ -75,17 +194,17 @@ public class StackFrameBuilder {
             }
         }
         frame.temporaries.addAll(slotsSet);
+        colorStackSlots(function, frame);
         for(int i = 0; i < frame.parameters.size(); i++) {
             StackSlot ss = frame.parameters.get(i);
             assert ss.base == null && ss.constant == null;
             ss.base = RegisterSet.rbp;
             ss.constant = new Immediate(16 + 8 * i);
         }
-        for(int i = 0; i < frame.temporaries.size(); i++) {
-            StackSlot ss = frame.temporaries.get(i);
+        for(StackSlot ss : frame.temporaries) {
             assert ss.base == null && ss.constant == null;
             ss.base = RegisterSet.rbp;
-            ss.constant = new Immediate(-8 - 8 * i);
+            ss.constant = new Immediate(-8 - 8 * frame.colors.get(ss));
         }
 
         /*
@@ -116,20 +235,26 @@ public class StackFrameBuilder {
         IRInstruction headInst = function.enterBB.head;
         headInst.prepend(new Push(headInst.bb, RegisterSet.rbp));
         headInst.prepend(new Move(headInst.bb, RegisterSet.rbp, RegisterSet.rsp));
-        headInst.prepend(new BinaryInst(headInst.bb, BinaryInst.BinaryOp.SUB, RegisterSet.rsp, new Immediate(frame.getFrameSize())));
         HashSet<PhysicalRegister> needToSave = new HashSet<>(function.usedPhysicalRegisters);
         needToSave.retainAll(RegisterSet.calleeSave);
+        //  keep rsp aligned to 16 bytes after pushing the callee save registers
+        int frameSize = frame.getFrameSize() + (needToSave.size() % 2) * Config.REGISTER_WIDTH;
+        headInst.prepend(new BinaryInst(headInst.bb, BinaryInst.BinaryOp.SUB, RegisterSet.rsp, new Immediate(frameSize)));
         headInst = headInst.prev;
         for(PhysicalRegister pr : needToSave)
             headInst.append(new Push(headInst.bb, pr));
 
         /*
-            handle ret
+            handle ret, and the tail calls leaving through the same epilogue
          */
-        Return ret = (Return)function.leaveBB.tail;
-        for(PhysicalRegister pr : needToSave)
-            ret.prepend(new Pop(ret.bb, pr));
-        ret.prepend(new Leave(ret.bb));
+        for(BasicBlock bb : function.basicblocks) {
+            if(!(bb.tail instanceof Return))
+                continue;
+            Return ret = (Return) bb.tail;
+            for(PhysicalRegister pr : needToSave)
+                ret.prepend(new Pop(ret.bb, pr));
+            ret.prepend(new Leave(ret.bb));
+        }
     }
 
     public void run() {
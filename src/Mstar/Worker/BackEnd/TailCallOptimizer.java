@@ -0,0 +1,88 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+import Mstar.IR.RegisterSet;
+
+import java.util.*;
+
+/*
+    turn the calls in tail position into jumps, after the registers are allocated and before the stack frame is built.
+    a call is in tail position when the path from it to a leaveBB which only returns (no global to store) is
+    straight and only copies rax between registers, so rax still holds the result when the function returns.
+    the call becomes a Return jumping to the callee: StackFrameBuilder puts the epilogue before it as before any
+    other Return, so the callee finds the stack as our caller left it and returns to our caller directly.
+    only the calls passing all their arguments in registers are changed, the arguments on the stack would
+    be in the frame being released.
+ */
+public class TailCallOptimizer {
+    private IRProgram irProgram;
+
+    public TailCallOptimizer(IRProgram irProgram) {
+        this.irProgram = irProgram;
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions)
+            processFunction(function);
+    }
+
+    private PhysicalRegister getPhysical(Operand operand) {
+        if(operand instanceof PhysicalRegister)
+            return (PhysicalRegister) operand;
+        if(operand instanceof VirtualRegister)
+            return ((VirtualRegister) operand).allocatedPhysicalRegister;
+        return null;
+    }
+
+    private boolean isTailCall(Call call) {
+        if(call.func.type == Function.Type.UserDefined && call.func.parameters.size() > 6)
+            return false;
+        HashSet<PhysicalRegister> result = new HashSet<>(Collections.singletonList(RegisterSet.rax));
+        HashSet<BasicBlock> visited = new HashSet<>();
+        IRInstruction inst = call.next;
+        while(true) {
+            if(inst instanceof Jump) {
+                BasicBlock target = ((Jump) inst).targetBB;
+                if(target == call.bb.function.leaveBB)
+                    break;
+                if(!visited.add(target))
+                    return false;
+                inst = target.head;
+                continue;
+            }
+            if(!(inst instanceof Move) || !result.contains(getPhysical(((Move) inst).src)))
+                return false;
+            PhysicalRegister dest = getPhysical(((Move) inst).dest);
+            if(dest == null)
+                return false;
+            result.add(dest);
+            inst = inst.next;
+        }
+        return result.contains(RegisterSet.rax);
+    }
+
+    private void processFunction(Function function) {
+        if(!(function.leaveBB.head instanceof Return))
+            return;
+        for(BasicBlock bb : function.basicblocks) {
+            if(!(bb.tail instanceof Jump))
+                continue;
+            IRInstruction inst = bb.tail.prev;
+            while(inst instanceof Move)
+                inst = inst.prev;
+            if(!(inst instanceof Call) || !isTailCall((Call) inst))
+                continue;
+            Call call = (Call) inst;
+            while(call.next != null)
+                call.next.remove();
+            Return ret = new Return(bb);
+            ret.tailCall = call;
+            call.replace(ret);
+        }
+        function.finishBuild();
+    }
+}
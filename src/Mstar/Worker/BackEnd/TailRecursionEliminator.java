@@ -0,0 +1,309 @@
+package Mstar.Worker.BackEnd;
+
+import Mstar.IR.BasicBlock;
+import Mstar.IR.Function;
+import Mstar.IR.IRProgram;
+import Mstar.IR.Instruction.*;
+import Mstar.IR.Operand.*;
+import Mstar.Symbol.VariableSymbol;
+
+import java.util.*;
+
+import static Mstar.IR.RegisterSet.vargs;
+import static Mstar.IR.RegisterSet.vrax;
+import static Mstar.IR.RegisterSet.vrdx;
+
+/*
+    turn the self recursive calls in tail position into jumps back to the entry, right after the IR is built.
+    the entry block is split after the moves of the arguments into the parameters and the loads of the globals,
+    the rest becomes the body, which a tail call jumps to after copying its arguments into the parameters
+    (through new registers, since an argument may read a parameter assigned before it).
+    the globals stay in their registers around the jump, they are only stored at leaveBB.
+
+    a call is in tail position when the path from it to leaveBB is straight (only Jumps between the blocks),
+    and its instructions either
+        copy the result: a Move from a register holding the result,
+        combine the result with an independent value by an associative and commutative operation
+        (ADD, MUL, AND, OR, XOR), like "return n + f(n - 1)",
+        or compute the independent values: no memory operand, no division which could trap,
+        not reading the result or a global (the call may change it) and not writing a global or a parameter,
+    and rax holds the result at leaveBB.
+    the combined values are folded into an accumulator starting at the identity of the operation, the
+    independent instructions are copied before the jump, and every return left jumping to leaveBB combines
+    the accumulator with the value it returns. leaveBB keeps only the stores of the globals, as FunctionInliner
+    expects of it. all the combining tail calls of a function must use the same operation.
+    the memorized functions are left as they are.
+ */
+public class TailRecursionEliminator {
+    private static class TailCall {
+        Call call;
+        //  the instructions to copy before the jump, and the operands to combine into the accumulator
+        LinkedList<Object> actions = new LinkedList<>();
+        BinaryInst.BinaryOp op;
+    }
+
+    private IRProgram irProgram;
+
+    //  for process function
+    private Function function;
+    private HashSet<Register> fixedRegisters;
+    private HashSet<Register> globalRegisters;
+
+    public TailRecursionEliminator(IRProgram irProgram) {
+        this.irProgram = irProgram;
+    }
+
+    public void run() {
+        for(Function function : irProgram.functions) {
+            if(!function.memoized)
+                processFunction(function);
+        }
+    }
+
+    private boolean isAssociative(BinaryInst.BinaryOp op) {
+        switch(op) {
+            case ADD: case MUL: case AND: case OR: case XOR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private int getIdentity(BinaryInst.BinaryOp op) {
+        switch(op) {
+            case MUL: return 1;
+            case AND: return -1;
+            default: return 0;
+        }
+    }
+
+    private boolean hasMemoryOperand(IRInstruction inst) {
+        if(inst instanceof Move)
+            return ((Move) inst).dest instanceof Memory || ((Move) inst).src instanceof Memory;
+        if(inst instanceof BinaryInst)
+            return ((BinaryInst) inst).dest instanceof Memory || ((BinaryInst) inst).src instanceof Memory;
+        if(inst instanceof UnaryInst)
+            return ((UnaryInst) inst).dest instanceof Memory;
+        return false;
+    }
+
+    //  an instruction which can be copied before the jump
+    private boolean isIndependent(IRInstruction inst, HashSet<Register> result) {
+        if(!(inst instanceof Move || inst instanceof BinaryInst || inst instanceof UnaryInst
+                || inst instanceof Lea || inst instanceof Cdq) || hasMemoryOperand(inst))
+            return false;
+        if(inst instanceof BinaryInst && (((BinaryInst) inst).op == BinaryInst.BinaryOp.DIV
+                || ((BinaryInst) inst).op == BinaryInst.BinaryOp.MOD))
+            return false;
+        for(Register reg : inst.getUseRegs()) {
+            if(result.contains(reg) || globalRegisters.contains(reg))
+                return false;
+        }
+        for(Register reg : inst.getDefRegs()) {
+            if(fixedRegisters.contains(reg))
+                return false;
+        }
+        return true;
+    }
+
+    private IRInstruction cloneInstruction(IRInstruction inst, BasicBlock bb) {
+        if(inst instanceof Move)
+            return new Move(bb, ((Move) inst).dest, ((Move) inst).src);
+        if(inst instanceof BinaryInst)
+            return new BinaryInst(bb, ((BinaryInst) inst).op, ((BinaryInst) inst).dest, ((BinaryInst) inst).src);
+        if(inst instanceof UnaryInst)
+            return new UnaryInst(bb, ((UnaryInst) inst).op, ((UnaryInst) inst).dest);
+        if(inst instanceof Lea)
+            return new Lea(bb, ((Lea) inst).dest, ((Lea) inst).src);
+        return new Cdq(bb);
+    }
+
+    //  the path from call to leaveBB, null if the call is not in tail position
+    private TailCall analyzeTailCall(Call call) {
+        TailCall tailCall = new TailCall();
+        tailCall.call = call;
+        HashSet<Register> result = new HashSet<>(Collections.singletonList(vrax));
+        HashSet<BasicBlock> visited = new HashSet<>();
+        IRInstruction inst = call.next;
+        while(true) {
+            if(inst instanceof Jump) {
+                BasicBlock target = ((Jump) inst).targetBB;
+                if(target == function.leaveBB)
+                    break;
+                if(!visited.add(target))
+                    return null;
+                inst = target.head;
+                continue;
+            }
+            if(inst instanceof Move && result.contains(((Move) inst).src)) {
+                Address dest = ((Move) inst).dest;
+                if(!(dest instanceof Register) || fixedRegisters.contains(dest))
+                    return null;
+                result.add((Register) dest);
+            } else if(inst instanceof BinaryInst && (result.contains(((BinaryInst) inst).src)
+                    || result.contains(((BinaryInst) inst).dest)
+                    || (((BinaryInst) inst).dest == null && result.contains(vrax)))) {
+                BinaryInst binaryInst = (BinaryInst) inst;
+                //  imul writes rax and rdx, the other forms of MUL are not generated
+                Address dest = binaryInst.dest == null ? vrax : binaryInst.dest;
+                if(binaryInst.dest == null && binaryInst.op != BinaryInst.BinaryOp.MUL)
+                    return null;
+                if(binaryInst.dest != null && binaryInst.op == BinaryInst.BinaryOp.MUL)
+                    return null;
+                if(!isAssociative(binaryInst.op) || (tailCall.op != null && tailCall.op != binaryInst.op))
+                    return null;
+                boolean destIsResult = result.contains(dest);
+                boolean srcIsResult = result.contains(binaryInst.src);
+                if(destIsResult == srcIsResult || !(dest instanceof Register) || fixedRegisters.contains(dest)
+                        || binaryInst.src instanceof Memory || globalRegisters.contains(binaryInst.src))
+                    return null;
+                tailCall.op = binaryInst.op;
+                tailCall.actions.add(destIsResult ? binaryInst.src : dest);
+                result.add((Register) dest);
+                if(binaryInst.dest == null)
+                    result.remove(vrdx);
+            } else if(isIndependent(inst, result)) {
+                tailCall.actions.add(inst);
+                result.removeAll(inst.getDefRegs());
+            } else {
+                return null;
+            }
+            inst = inst.next;
+        }
+        if(function.hasReturnValue ? !result.contains(vrax) : tailCall.op != null)
+            return null;
+        return tailCall;
+    }
+
+    //  leaveBB only stores the globals and returns
+    private boolean isPlainLeave() {
+        for(IRInstruction inst = function.leaveBB.head; inst != null; inst = inst.next) {
+            if(inst instanceof Return)
+                continue;
+            if(!(inst instanceof Move) || !(((Move) inst).dest instanceof Memory) || !(((Move) inst).src instanceof Register)
+                    || !fixedRegisters.contains(((Move) inst).src))
+                return false;
+        }
+        return true;
+    }
+
+    //  a move of an argument into its parameter, or the load of a global
+    private boolean isEntryMove(IRInstruction inst) {
+        if(!(inst instanceof Move) || !fixedRegisters.contains(((Move) inst).dest))
+            return false;
+        Operand src = ((Move) inst).src;
+        return vargs.contains(src) || src == ((VirtualRegister) ((Move) inst).dest).spillPlace;
+    }
+
+    //  the first instruction after the moves of the arguments and the loads of the globals
+    private IRInstruction getFirstBodyInstruction() {
+        IRInstruction inst = function.enterBB.head;
+        while(isEntryMove(inst))
+            inst = inst.next;
+        return inst;
+    }
+
+    private BasicBlock splitEntry(IRInstruction first) {
+        BasicBlock enterBB = function.enterBB;
+        BasicBlock body = new BasicBlock(function, "tail_body");
+        body.head = first;
+        body.tail = enterBB.tail;
+        if(first.prev == null) {
+            enterBB.head = enterBB.tail = null;
+        } else {
+            enterBB.tail = first.prev;
+            first.prev.next = null;
+            first.prev = null;
+        }
+        for(IRInstruction inst = first; inst != null; inst = inst.next)
+            inst.bb = body;
+        enterBB.append(new Jump(enterBB, body));
+        return body;
+    }
+
+    private void combine(BasicBlock bb, IRInstruction before, BinaryInst.BinaryOp op, VirtualRegister accumulator, Operand value) {
+        if(op == BinaryInst.BinaryOp.MUL) {
+            VirtualRegister temp = new VirtualRegister("");
+            before.prepend(new Move(bb, temp, value));
+            before.prepend(new Move(bb, vrax, accumulator));
+            before.prepend(new BinaryInst(bb, op, null, temp));
+            before.prepend(new Move(bb, accumulator, vrax));
+        } else {
+            before.prepend(new BinaryInst(bb, op, accumulator, value));
+        }
+    }
+
+    private void replaceTailCall(TailCall tailCall, BasicBlock body, VirtualRegister accumulator, BinaryInst.BinaryOp op) {
+        Call call = tailCall.call;
+        BasicBlock bb = call.bb;
+        while(call.next != null)
+            call.next.remove();
+        LinkedList<VirtualRegister> temps = new LinkedList<>();
+        for(Operand arg : call.args) {
+            VirtualRegister temp = new VirtualRegister("");
+            call.prepend(new Move(bb, temp, arg));
+            temps.add(temp);
+        }
+        for(Object action : tailCall.actions) {
+            if(action instanceof IRInstruction)
+                call.prepend(cloneInstruction((IRInstruction) action, bb));
+            else
+                combine(bb, call, op, accumulator, (Operand) action);
+        }
+        for(int i = 0; i < temps.size(); i++)
+            call.prepend(new Move(bb, function.parameters.get(i), temps.get(i)));
+        call.prepend(new Jump(bb, body));
+        call.remove();
+    }
+
+    private void processFunction(Function function) {
+        this.function = function;
+        globalRegisters = new HashSet<>();
+        for(VariableSymbol vs : function.usedGlobalVariables)
+            globalRegisters.add(vs.virtualRegister);
+        fixedRegisters = new HashSet<>(function.parameters);
+        fixedRegisters.addAll(globalRegisters);
+        if(!isPlainLeave())
+            return;
+
+        LinkedList<TailCall> tailCalls = new LinkedList<>();
+        BinaryInst.BinaryOp op = null;
+        for(BasicBlock bb : function.basicblocks) {
+            for(IRInstruction inst = bb.head; inst != null; inst = inst.next) {
+                if(!(inst instanceof Call) || ((Call) inst).func != function
+                        || ((Call) inst).args.size() != function.parameters.size())
+                    continue;
+                TailCall tailCall = analyzeTailCall((Call) inst);
+                if(tailCall == null || (tailCall.op != null && op != null && tailCall.op != op))
+                    continue;
+                if(tailCall.op != null)
+                    op = tailCall.op;
+                tailCalls.add(tailCall);
+            }
+        }
+        if(tailCalls.isEmpty())
+            return;
+
+        BasicBlock body = splitEntry(getFirstBodyInstruction());
+        VirtualRegister accumulator = null;
+        if(op != null) {
+            accumulator = new VirtualRegister("");
+            function.enterBB.tail.prepend(new Move(function.enterBB, accumulator, new Immediate(getIdentity(op))));
+        }
+        for(TailCall tailCall : tailCalls)
+            replaceTailCall(tailCall, body, accumulator, op);
+        if(op != null) {
+            //  the value of the last level is combined with the accumulator where it is returned
+            for(BasicBlock bb : function.basicblocks) {
+                if(!(bb.tail instanceof Jump) || ((Jump) bb.tail).targetBB != function.leaveBB)
+                    continue;
+                VirtualRegister value = new VirtualRegister("");
+                bb.tail.prepend(new Move(bb, value, vrax));
+                combine(bb, bb.tail, op, value, accumulator);
+                bb.tail.prepend(new Move(bb, vrax, value));
+            }
+        }
+        function.finishBuild();
+        function.removeUnreachableBasicBlocks();
+    }
+}
@@ -12,7 +12,7 @@ import java.util.*;
 public class UselessInstructionEliminater {
     private IRProgram irProgram;
     private LivenessAnalyzer livenessAnalyzer;
-    private HashMap<BasicBlock,HashSet<VirtualRegister>> liveOut;
+    private HashMap<BasicBlock,BitSet> liveOut;
 
     public UselessInstructionEliminater(IRProgram irProgram) {
         this.irProgram = irProgram;
@@ -24,26 +24,19 @@ public class UselessInstructionEliminater {
             processFunction(function);
     }
 
-    private LinkedList<VirtualRegister> trans(LinkedList<Register> set) {
-        LinkedList<VirtualRegister> retSet = new LinkedList<>();
-        for(Register register : set) {
-            assert register instanceof VirtualRegister;
-            retSet.add((VirtualRegister) register);
-        }
-        return retSet;
-    }
-
     private boolean isRemovable(IRInstruction inst) {
-        return !(inst instanceof Return || inst instanceof Leave || inst instanceof Call || inst instanceof Cdq
+        if(inst instanceof Call)
+            return ((Call) inst).func.effect != Function.Effect.Writing;
+        return !(inst instanceof Return || inst instanceof Leave
                 || inst instanceof Push || inst instanceof Pop || inst instanceof Jump || inst instanceof CJump);
     }
 
     private void processFunction(Function function) {
          liveOut = livenessAnalyzer.getLiveOut(function);
          for(BasicBlock bb : function.basicblocks) {
-             HashSet<VirtualRegister> liveSet = new HashSet<>(liveOut.get(bb));
+             BitSet liveSet = (BitSet) liveOut.get(bb).clone();
              for(IRInstruction inst = bb.tail; inst != null; inst = inst.prev) {
-                 LinkedList<Register> usedSet = inst instanceof Call ? ((Call) inst).getCallUsed() : inst.getUseRegs();
+                 LinkedList<Register> usedSet = livenessAnalyzer.getUsedRegs(inst, false);
                  LinkedList<Register> definedSet = inst.getDefRegs();
                  boolean dead = true;
                  if(definedSet.isEmpty())
@@ -51,7 +44,7 @@ public class UselessInstructionEliminater {
                  for(Register register : definedSet) {
                      VirtualRegister vr = (VirtualRegister)register;
                      if(!dead) break;
-                     if(liveSet.contains(vr) || vr.spillPlace != null) {
+                     if(liveSet.get(livenessAnalyzer.getIndex(vr)) || vr.spillPlace != null) {
                          dead = false;
                          break;
                      }
@@ -59,8 +52,8 @@ public class UselessInstructionEliminater {
                  if(dead && isRemovable(inst)) {
                      inst.remove();
                  } else {
-                     liveSet.removeAll(trans(definedSet));
-                     liveSet.addAll(trans(usedSet));
+                     liveSet.andNot(livenessAnalyzer.toBitSet(definedSet));
+                     liveSet.or(livenessAnalyzer.toBitSet(usedSet));
                  }
              }
          }
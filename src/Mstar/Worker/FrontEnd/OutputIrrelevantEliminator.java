@@ -99,6 +99,11 @@ public class OutputIrrelevantEliminator implements IAstVisitor {
     @Override
     public void visit(FuncDeclaration node) {
         if(initSymbolStage) {
+            //  an array parameter is the memory of the caller, the stores through it are always relevant
+            for(VariableDeclaration parameter : node.parameters) {
+                if(parameter.symbol.type instanceof ArrayType)
+                    symbolRelevantSet.add(parameter.symbol);
+            }
             for (Statement statement : node.body)
                 statement.accept(this);
         } else if(updateRelevantSet) {
@@ -140,10 +145,15 @@ public class OutputIrrelevantEliminator implements IAstVisitor {
             if (node.init != null) {
                 node.init.accept(this);
                 addDependence(node, node.init);
+                //  like an assignment, the new name aliases the arrays of init
+                if(node.init.type instanceof ArrayType) {
+                    definedSymbols.get(node).addAll(usedSymbols.get(node.init));
+                    usedSymbols.get(node).add(node.symbol);
+                }
             }
             definedSymbols.get(node).add(node.symbol);
         } else if(updateRelevantSet) {
-            propgate(node, node.init);
+            propgate(node, node);
             if(node.init != null)
                 node.init.accept(this);
         }